@@ -0,0 +1,202 @@
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+
+/**
+ * Describes where VideoStreamer captures video from and creates the matching FFmpegFrameGrabber.
+ * <p>
+ * Besides screen capture and cameras, a source can be a media file that is looped, or a generated
+ * test pattern at any resolution and frame rate. Files and test patterns produce the same frames on
+ * every run, so they can be used to replay identical content when comparing performance, and they
+ * work without a desktop. A source is created from a text specification, see {@link #parse(String)}.
+ *
+ * @author Jimmie Nilsson jini6619
+ */
+public final class CaptureSource {
+    private final String format;
+    private final String input;
+    private final int width;
+    private final int height;
+    private final double frameRate;
+    private final boolean looping;
+    private final boolean realtime;
+
+    private CaptureSource(String format, String input, int width, int height, double frameRate,
+                          boolean looping, boolean realtime) {
+        this.format = format;
+        this.input = input;
+        this.width = width;
+        this.height = height;
+        this.frameRate = frameRate;
+        this.looping = looping;
+        this.realtime = realtime;
+    }
+
+    /**
+     * Creates a source from a text specification. Supported specifications are:
+     * <ul>
+     *     <li>"desktop" - Windows screen capture (gdigrab) at 1920x1080.</li>
+     *     <li>"default" - macOS screen or camera capture (avfoundation).</li>
+     *     <li>"file:&lt;path&gt;" - a media file, looped at its native frame rate.</li>
+     *     <li>"testsrc:&lt;width&gt;x&lt;height&gt;@&lt;fps&gt;" - a generated test pattern.</li>
+     *     <li>"x11grab:&lt;display&gt;[:&lt;width&gt;x&lt;height&gt;@&lt;fps&gt;]" - Linux screen capture, e.g. "x11grab:0.0".</li>
+     *     <li>"v4l2:&lt;device&gt;" or a path starting with "/dev/" - a Linux camera.</li>
+     * </ul>
+     *
+     * @param spec The source specification.
+     * @return The capture source.
+     * @throws IllegalArgumentException If the specification is not recognized.
+     */
+    public static CaptureSource parse(String spec) {
+        if (spec.equals("desktop")) {
+            return desktop();
+        } else if (spec.equals("default")) {
+            return new CaptureSource("avfoundation", "default", 0, 0, 30, false, false);
+        } else if (spec.startsWith("file:")) {
+            return file(spec.substring("file:".length()));
+        } else if (spec.startsWith("testsrc:")) {
+            int[] mode = parseMode(spec.substring("testsrc:".length()));
+            return testPattern(mode[0], mode[1], mode[2]);
+        } else if (spec.startsWith("x11grab:")) {
+            String[] parts = spec.substring("x11grab:".length()).split(":", 2);
+            int[] mode = parts.length > 1 ? parseMode(parts[1]) : new int[]{1920, 1080, 30};
+            return x11grab(":" + parts[0], mode[0], mode[1], mode[2]);
+        } else if (spec.startsWith("v4l2:")) {
+            return v4l2(spec.substring("v4l2:".length()));
+        } else if (spec.startsWith("/dev/")) {
+            return v4l2(spec);
+        }
+        throw new IllegalArgumentException("Unknown video source: " + spec);
+    }
+
+    /**
+     * Creates a Windows screen capture source at 1920x1080.
+     *
+     * @return The capture source.
+     */
+    public static CaptureSource desktop() {
+        return new CaptureSource("gdigrab", "desktop", 1920, 1080, 30, false, false);
+    }
+
+    /**
+     * Creates a source reading a media file, restarting it when it ends.
+     *
+     * @param path The path to the media file.
+     * @return The capture source, paced to the file's native frame rate.
+     * @throws IllegalArgumentException If no path is given.
+     */
+    public static CaptureSource file(String path) {
+        if (path.isBlank()) {
+            throw new IllegalArgumentException("No media file given, choose a file or enter file:<path>");
+        }
+        return new CaptureSource(null, path, 0, 0, 0, true, true);
+    }
+
+    /**
+     * Creates a generated test pattern source using FFmpeg's lavfi testsrc2 filter.
+     *
+     * @param width     The frame width.
+     * @param height    The frame height.
+     * @param frameRate The frame rate.
+     * @return The capture source, paced to the given frame rate.
+     */
+    public static CaptureSource testPattern(int width, int height, double frameRate) {
+        String filter = "testsrc2=size=" + width + "x" + height + ":rate=" + frameRate;
+        return new CaptureSource("lavfi", filter, width, height, frameRate, false, true);
+    }
+
+    /**
+     * Creates a Linux X11 screen capture source.
+     *
+     * @param display   The X display and screen, e.g. ":0.0".
+     * @param width     The capture width.
+     * @param height    The capture height.
+     * @param frameRate The frame rate.
+     * @return The capture source.
+     */
+    public static CaptureSource x11grab(String display, int width, int height, double frameRate) {
+        return new CaptureSource("x11grab", display, width, height, frameRate, false, false);
+    }
+
+    /**
+     * Creates a Linux Video4Linux2 camera source using the camera's default mode.
+     *
+     * @param device The device path, e.g. "/dev/video0".
+     * @return The capture source.
+     */
+    public static CaptureSource v4l2(String device) {
+        return new CaptureSource("video4linux2", device, 0, 0, 0, false, false);
+    }
+
+    /**
+     * Returns a copy of this source with pacing turned on or off. Without pacing, files and test
+     * patterns are read as fast as the encoder can take them, which is useful for benchmarks.
+     * Capture devices deliver frames at their own rate and are never paced.
+     *
+     * @param realtime True to deliver frames at the source's frame rate.
+     * @return The capture source.
+     */
+    public CaptureSource withRealtime(boolean realtime) {
+        boolean paced = realtime && (looping || "lavfi".equals(format));
+        return new CaptureSource(format, input, width, height, frameRate, looping, paced);
+    }
+
+    /**
+     * Creates a grabber for this source. The grabber is not started.
+     *
+     * @return The configured grabber.
+     */
+    public FFmpegFrameGrabber createGrabber() {
+        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(input);
+        if (format != null) {
+            grabber.setFormat(format);
+        }
+        if (width > 0 && height > 0) {
+            grabber.setImageWidth(width);
+            grabber.setImageHeight(height);
+        }
+        if (frameRate > 0) {
+            grabber.setFrameRate(frameRate);
+        }
+        return grabber;
+    }
+
+    /**
+     * Checks whether the source should be restarted when it runs out of frames.
+     *
+     * @return True for looped media files.
+     */
+    public boolean isLooping() {
+        return looping;
+    }
+
+    /**
+     * Checks whether frames must be delivered at the source's frame rate by the reader.
+     *
+     * @return True if the reader should pace the frames.
+     */
+    public boolean isRealtime() {
+        return realtime;
+    }
+
+    @Override
+    public String toString() {
+        return (format != null ? format + ":" : "") + input;
+    }
+
+    /**
+     * Parses a video mode written as "&lt;width&gt;x&lt;height&gt;@&lt;fps&gt;".
+     *
+     * @param mode The video mode.
+     * @return The width, height and frame rate.
+     * @throws IllegalArgumentException If the mode is malformed.
+     */
+    private static int[] parseMode(String mode) {
+        try {
+            String[] sizeAndRate = mode.split("@");
+            String[] size = sizeAndRate[0].split("x");
+            int rate = sizeAndRate.length > 1 ? Integer.parseInt(sizeAndRate[1]) : 30;
+            return new int[]{Integer.parseInt(size[0]), Integer.parseInt(size[1]), rate};
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid video mode, expected <width>x<height>@<fps>: " + mode);
+        }
+    }
+}
@@ -18,6 +18,7 @@ public class ChatClient {
     private PrintWriter writer;
     private BufferedReader reader;
     private MessageListener messageListener;
+    private volatile boolean closed;
 
     /**
      * Constructs a ChatClient instance.
@@ -66,6 +67,9 @@ public class ChatClient {
                 }
             }
         } catch (IOException e) {
+            if (closed) {
+                return;
+            }
             System.err.println("Error receiving messages: " + e.getMessage());
             disconnect();
         }
@@ -80,6 +84,21 @@ public class ChatClient {
         this.messageListener = listener;
     }
 
+    /**
+     * Closes the connection to the server without exiting the application, for example to
+     * connect to another server instead.
+     */
+    public void close() {
+        closed = true;
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing resources: " + e.getMessage());
+        }
+    }
+
     /**
      * Disconnects from the server and releases all associated resources.
      */
@@ -0,0 +1,296 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Partitions chat clients into rooms and broadcasts chat messages on a pool of shard threads,
+ * so the threads reading client messages and the video fan-out never wait for chat writes.
+ * <p>
+ * Clients are spread over the shards, and every shard writes to its own clients only. That way
+ * the writes for one large room are shared by all shards. Each shard coalesces the messages for a
+ * room that arrive within a short window into a single batched write per client.
+ * <p>
+ * The shards never write to a socket themselves. Each client has a bounded outbox that is drained
+ * by a writer thread, so a slow client only delays its own messages. A client whose outbox is full
+ * has fallen too far behind and is disconnected.
+ *
+ * @author Jimmie Nilsson jini6619
+ */
+public class ChatRooms {
+    private static final int MAX_PENDING_CHARS = 64 * 1024;
+    private static final int MAX_OUTBOX_CHARS = 256 * 1024;
+
+    private final Shard[] shards;
+    private final long coalesceNanos;
+    private final ConcurrentHashMap<PrintWriter, Member> members = new ConcurrentHashMap<>();
+    private final ExecutorService writers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "chat-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Constructs a ChatRooms instance.
+     *
+     * @param shardCount The number of shard threads.
+     * @param coalesceMs The window in milliseconds within which messages to a room are batched.
+     */
+    public ChatRooms(int shardCount, long coalesceMs) {
+        this.coalesceNanos = coalesceMs * 1_000_000L;
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i);
+        }
+    }
+
+    /**
+     * Adds a client, which can then join rooms.
+     *
+     * @param client     The writer for the client's chat connection.
+     * @param connection The client's connection, closed if the client falls too far behind.
+     */
+    public void connect(PrintWriter client, Closeable connection) {
+        members.put(client, new Member(client, connection));
+    }
+
+    /**
+     * Moves a client into a room, leaving the room it was in before.
+     *
+     * @param room   The room to join.
+     * @param client The writer for the client's chat connection.
+     */
+    public void join(String room, PrintWriter client) {
+        Member member = members.get(client);
+        if (member == null) {
+            return;
+        }
+        String previous = member.room;
+        member.room = room;
+        Shard shard = shardOf(client);
+        shard.executor.execute(() -> {
+            if (previous != null) {
+                shard.removeMember(previous, member);
+            }
+            shard.rooms.computeIfAbsent(room, name -> new Room()).members.add(member);
+        });
+    }
+
+    /**
+     * Removes a client and its room membership.
+     *
+     * @param client The writer for the client's chat connection, may be null.
+     */
+    public void leave(PrintWriter client) {
+        Member member = client != null ? members.remove(client) : null;
+        if (member == null) {
+            return;
+        }
+        member.closed = true;
+        String room = member.room;
+        if (room != null) {
+            Shard shard = shardOf(client);
+            shard.executor.execute(() -> shard.removeMember(room, member));
+        }
+    }
+
+    /**
+     * Gets the room a client is in.
+     *
+     * @param client The writer for the client's chat connection.
+     * @return The room, or null if the client has not joined one.
+     */
+    public String getRoom(PrintWriter client) {
+        Member member = members.get(client);
+        return member != null ? member.room : null;
+    }
+
+    /**
+     * Broadcasts a message to all clients in a room.
+     *
+     * @param room    The room.
+     * @param message The message.
+     */
+    public void broadcast(String room, String message) {
+        for (Shard shard : shards) {
+            shard.executor.execute(() -> shard.enqueue(room, message));
+        }
+    }
+
+    /**
+     * Broadcasts a message to all clients in all rooms.
+     *
+     * @param message The message.
+     */
+    public void broadcastAll(String message) {
+        for (Shard shard : shards) {
+            shard.executor.execute(() -> {
+                for (String room : shard.rooms.keySet()) {
+                    shard.enqueue(room, message);
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops the shard and writer threads.
+     */
+    public void shutdown() {
+        for (Shard shard : shards) {
+            shard.executor.shutdown();
+        }
+        writers.shutdown();
+    }
+
+    private Shard shardOf(PrintWriter client) {
+        return shards[Math.floorMod(System.identityHashCode(client), shards.length)];
+    }
+
+    /**
+     * A client with its outbox of batches waiting to be written.
+     */
+    private final class Member {
+        private final PrintWriter client;
+        private final Closeable connection;
+        private final ConcurrentLinkedQueue<String> outbox = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger outboxChars = new AtomicInteger();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private volatile String room;
+        private volatile boolean closed;
+
+        private Member(PrintWriter client, Closeable connection) {
+            this.client = client;
+            this.connection = connection;
+        }
+
+        /**
+         * Queues a batch for the writer thread. Called on the shard's thread, never blocks.
+         */
+        private void send(String batch) {
+            if (closed) {
+                return;
+            }
+            if (outboxChars.addAndGet(batch.length()) > MAX_OUTBOX_CHARS) {
+                disconnect();
+                return;
+            }
+            outbox.add(batch);
+            if (draining.compareAndSet(false, true)) {
+                writers.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            do {
+                String batch;
+                while (!closed && (batch = outbox.poll()) != null) {
+                    client.println(batch);
+                    outboxChars.addAndGet(-batch.length());
+                }
+                draining.set(false);
+                // A batch may have been added after the last poll but before draining was cleared
+            } while (!closed && !outbox.isEmpty() && draining.compareAndSet(false, true));
+        }
+
+        /**
+         * Closes the connection of a client that is not reading its messages. The client's own
+         * thread then sees the connection end and removes it.
+         */
+        private void disconnect() {
+            closed = true;
+            outbox.clear();
+            System.out.println("Disconnecting chat client that fell behind: " + connection);
+            try {
+                connection.close();
+            } catch (IOException e) {
+                System.err.println("Error closing chat client: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The part of a room handled by one shard. Only accessed on the shard's thread.
+     */
+    private final class Room {
+        private final Set<Member> members = new LinkedHashSet<>();
+        private final StringBuilder pending = new StringBuilder();
+        private long lastFlushNanos = System.nanoTime() - coalesceNanos;
+        private boolean flushScheduled;
+    }
+
+    /**
+     * A single thread writing chat messages to its share of the clients.
+     */
+    private final class Shard {
+        private final ScheduledExecutorService executor;
+        private final Map<String, Room> rooms = new HashMap<>();
+
+        private Shard(int index) {
+            executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "chat-shard-" + index);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        private void removeMember(String name, Member member) {
+            Room room = rooms.get(name);
+            if (room != null) {
+                room.members.remove(member);
+                if (room.members.isEmpty()) {
+                    rooms.remove(name);
+                }
+            }
+        }
+
+        /**
+         * Adds a message to a room's batch. The batch is written right away if the room has been
+         * quiet for a whole window, otherwise when the current window ends.
+         */
+        private void enqueue(String name, String message) {
+            Room room = rooms.get(name);
+            if (room == null || room.pending.length() + message.length() > MAX_PENDING_CHARS) {
+                return;
+            }
+            if (room.pending.length() > 0) {
+                room.pending.append('\n');
+            }
+            room.pending.append(message);
+
+            if (room.flushScheduled) {
+                return;
+            }
+            long sinceFlush = System.nanoTime() - room.lastFlushNanos;
+            if (sinceFlush >= coalesceNanos) {
+                flush(room);
+            } else {
+                room.flushScheduled = true;
+                executor.schedule(() -> flush(room), coalesceNanos - sinceFlush, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void flush(Room room) {
+            room.flushScheduled = false;
+            room.lastFlushNanos = System.nanoTime();
+            if (room.pending.length() == 0) {
+                return;
+            }
+            String batch = room.pending.toString();
+            room.pending.setLength(0);
+            for (Member member : room.members) {
+                member.send(batch);
+            }
+        }
+    }
+}
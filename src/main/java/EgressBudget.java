@@ -0,0 +1,317 @@
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Admission control for receivers based on an egress bandwidth budget for the whole server and
+ * for each channel. The load of a channel is projected from its measured bitrate and the number
+ * of receivers admitted to it, so a new receiver is only admitted if the projected load including
+ * it stays within both budgets.
+ * <p>
+ * When a receiver does not fit, it is queued until capacity frees up, redirected to another server
+ * if one is configured, or rejected, instead of letting all viewers degrade at once. Queued
+ * receivers are admitted in arrival order and before new ones, and a queued receiver that
+ * disconnects gives up its place.
+ * <p>
+ * Channel bitrates are sampled on a fixed one second tick. A window that is much longer than the
+ * tick, or in which nothing was sent, is discarded rather than counted as a measurement.
+ *
+ * @author Jimmie Nilsson jini6619
+ */
+public class EgressBudget {
+    private static final long METER_WINDOW_NANOS = 1_000_000_000L;
+    // Windows stretched beyond this by a delayed tick are too coarse to use
+    private static final long MAX_METER_WINDOW_NANOS = 2 * METER_WINDOW_NANOS;
+    // How often a queued receiver checks that it is still connected
+    private static final long CONNECTION_CHECK_MS = 1000;
+
+    private final long serverBudgetBps;
+    private final int maxQueued;
+    private final String redirectTarget;
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService meter;
+    private final ArrayDeque<Ticket> waiters = new ArrayDeque<>();
+
+    /**
+     * The outcome of a registration request.
+     */
+    public enum Decision {
+        /** The receiver fits and has been admitted. */
+        ADMIT,
+        /** The receiver does not fit yet and should wait with awaitAdmission. */
+        QUEUE,
+        /** The receiver does not fit and should connect to the redirect target instead. */
+        REDIRECT,
+        /** The receiver does not fit and there is no room in the queue. */
+        REJECT
+    }
+
+    /**
+     * The answer to a registration request. A queued ticket holds the receiver's place in the queue
+     * and is passed to awaitAdmission.
+     */
+    public static final class Ticket {
+        private final Channel channel;
+        private final double cost;
+        private final Decision decision;
+
+        private Ticket(Channel channel, double cost, Decision decision) {
+            this.channel = channel;
+            this.cost = cost;
+            this.decision = decision;
+        }
+
+        /**
+         * Gets the outcome of the request.
+         *
+         * @return The decision.
+         */
+        public Decision getDecision() {
+            return decision;
+        }
+    }
+
+    /**
+     * A channel with its own budget and bitrate measurement.
+     */
+    public static final class Channel {
+        private final String name;
+        private final long budgetBps;
+        private final long defaultBitrateBps;
+        private final LongAdder bytes = new LongAdder();
+        private long windowStartNanos = System.nanoTime();
+        private volatile long bitrateBps;
+        private double receiverUnits;
+
+        private Channel(String name, long budgetBps, long defaultBitrateBps) {
+            this.name = name;
+            this.budgetBps = budgetBps;
+            this.defaultBitrateBps = defaultBitrateBps;
+        }
+
+        /**
+         * Records bytes sent once on the channel, before fan-out to the receivers.
+         *
+         * @param length The number of bytes.
+         */
+        public void record(int length) {
+            bytes.add(length);
+        }
+
+        /**
+         * Gets the measured bitrate of the channel, or the default bitrate until one is measured.
+         *
+         * @return The bitrate in bits per second.
+         */
+        public long getBitrateBps() {
+            long measured = bitrateBps;
+            return measured > 0 ? measured : defaultBitrateBps;
+        }
+
+        /**
+         * Ends the current meter window and folds it into the bitrate. Called on the meter tick.
+         */
+        private void sample() {
+            long now = System.nanoTime();
+            long elapsed = now - windowStartNanos;
+            long sent = bytes.sumThenReset();
+            windowStartNanos = now;
+            if (sent == 0 || elapsed <= 0 || elapsed > MAX_METER_WINDOW_NANOS) {
+                // Idle or stretched windows say nothing about the stream's bitrate
+                return;
+            }
+            long measured = sent * 8 * 1_000_000_000L / elapsed;
+            // Smooth the measurement so a single slow or busy second does not swing admission
+            bitrateBps = bitrateBps == 0 ? measured : (bitrateBps * 3 + measured) / 4;
+        }
+
+        private long load() {
+            return (long) (receiverUnits * getBitrateBps());
+        }
+
+        private long projectedLoad(double cost) {
+            return (long) ((receiverUnits + cost) * getBitrateBps());
+        }
+    }
+
+    /**
+     * Constructs an EgressBudget.
+     *
+     * @param serverBudgetBps The egress budget for the whole server in bits per second.
+     * @param maxQueued       The number of receivers that may wait for capacity at the same time.
+     * @param redirectTarget  The "host:port" of a server to send receivers to when full, or null.
+     */
+    public EgressBudget(long serverBudgetBps, int maxQueued, String redirectTarget) {
+        this.serverBudgetBps = serverBudgetBps;
+        this.maxQueued = maxQueued;
+        this.redirectTarget = redirectTarget;
+        this.meter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "egress-meter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        meter.scheduleAtFixedRate(this::sampleChannels, METER_WINDOW_NANOS, METER_WINDOW_NANOS, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Gets a channel, creating it with the given budget if it does not exist.
+     *
+     * @param name              The channel name.
+     * @param budgetBps         The egress budget for the channel in bits per second.
+     * @param defaultBitrateBps The bitrate to assume until the channel's bitrate has been measured.
+     * @return The channel.
+     */
+    public Channel channel(String name, long budgetBps, long defaultBitrateBps) {
+        return channels.computeIfAbsent(name, n -> new Channel(n, budgetBps, defaultBitrateBps));
+    }
+
+    /**
+     * Requests admission of a receiver to a channel. If the receiver is admitted, its share of the
+     * budget is reserved until release is called. If it is queued, awaitAdmission must be called
+     * with the returned ticket.
+     *
+     * @param channel The channel the receiver wants to watch.
+     * @param cost    The receiver's cost in streams, e.g. 1.4 for a receiver with 40 percent FEC overhead.
+     * @return The ticket holding the decision.
+     */
+    public synchronized Ticket request(Channel channel, double cost) {
+        // Receivers already waiting get the capacity first
+        if (waiters.isEmpty() && fits(channel, cost)) {
+            channel.receiverUnits += cost;
+            return new Ticket(channel, cost, Decision.ADMIT);
+        }
+        if (waiters.size() < maxQueued) {
+            Ticket ticket = new Ticket(channel, cost, Decision.QUEUE);
+            waiters.add(ticket);
+            return ticket;
+        }
+        return new Ticket(channel, cost, redirectTarget != null ? Decision.REDIRECT : Decision.REJECT);
+    }
+
+    /**
+     * Waits until a queued receiver is first in the queue and fits, then reserves its share of the
+     * budget. The receiver leaves the queue when it is admitted, the wait ends, or it disconnects.
+     *
+     * @param ticket    The queued ticket returned by request.
+     * @param timeoutMs How long to wait at most.
+     * @param connected Checks whether the receiver is still connected, called without holding the
+     *                  budget's lock before each attempt.
+     * @return True if the receiver was admitted, false if it disconnected, the wait timed out or was interrupted.
+     */
+    public boolean awaitAdmission(Ticket ticket, long timeoutMs, BooleanSupplier connected) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        try {
+            while (connected.getAsBoolean()) {
+                synchronized (this) {
+                    if (waiters.peek() == ticket && fits(ticket.channel, ticket.cost)) {
+                        waiters.poll();
+                        ticket.channel.receiverUnits += ticket.cost;
+                        // The next receiver in the queue may fit as well
+                        notifyAll();
+                        return true;
+                    }
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    wait(Math.min(remaining, CONNECTION_CHECK_MS));
+                }
+            }
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            synchronized (this) {
+                // Let the receivers behind a departed head move up
+                if (waiters.remove(ticket)) {
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases the share of the budget reserved for an admitted receiver.
+     *
+     * @param channel The channel the receiver was watching.
+     * @param cost    The cost the receiver was admitted with.
+     */
+    public synchronized void release(Channel channel, double cost) {
+        channel.receiverUnits = Math.max(0, channel.receiverUnits - cost);
+        notifyAll();
+    }
+
+    /**
+     * Stops the bitrate meter.
+     */
+    public void shutdown() {
+        meter.shutdown();
+    }
+
+    /**
+     * Gets the server to redirect receivers to when full.
+     *
+     * @return The "host:port" of the redirect target, or null if there is none.
+     */
+    public String getRedirectTarget() {
+        return redirectTarget;
+    }
+
+    /**
+     * Gets the current egress load of the whole server.
+     *
+     * @return The load in bits per second.
+     */
+    public synchronized long getServerLoadBps() {
+        long load = 0;
+        for (Channel channel : channels.values()) {
+            load += channel.load();
+        }
+        return load;
+    }
+
+    /**
+     * Describes the current and projected utilization of the server and each channel,
+     * where projected means with one more receiver admitted.
+     *
+     * @return A human readable summary.
+     */
+    public synchronized String describe() {
+        long serverLoad = getServerLoadBps();
+        StringBuilder summary = new StringBuilder("Egress: server " + percent(serverLoad, serverBudgetBps)
+                + " of " + serverBudgetBps / 1_000_000 + " Mbps, " + waiters.size() + " queued");
+        for (Channel channel : channels.values()) {
+            summary.append("; channel ").append(channel.name)
+                    .append(" ").append(channel.getBitrateBps() / 1000).append(" kbps x ")
+                    .append(String.format("%.1f", channel.receiverUnits)).append(" receivers = ")
+                    .append(percent(channel.load(), channel.budgetBps))
+                    .append(", projected ").append(percent(channel.projectedLoad(1), channel.budgetBps));
+        }
+        return summary.toString();
+    }
+
+    private void sampleChannels() {
+        for (Channel channel : channels.values()) {
+            channel.sample();
+        }
+        synchronized (this) {
+            // A new bitrate can make room for queued receivers
+            notifyAll();
+        }
+    }
+
+    private boolean fits(Channel channel, double cost) {
+        long added = channel.projectedLoad(cost) - channel.load();
+        return channel.projectedLoad(cost) <= channel.budgetBps && getServerLoadBps() + added <= serverBudgetBps;
+    }
+
+    private static String percent(long load, long budget) {
+        return String.format("%.0f%%", budget > 0 ? 100.0 * load / budget : 0);
+    }
+}
@@ -0,0 +1,180 @@
+import java.time.Instant;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An asynchronous event log for the server's hot paths. Messages are put on a lock-free queue and
+ * written to the console by a background thread, so callers never wait for console output.
+ * <p>
+ * Events that can repeat at packet rate, such as send errors to a client, are registered once as
+ * a RateLimitedEvent. Recording one only increments a counter, and the writer thread prints a
+ * single summary line per event and interval, for example
+ * "37 send errors to /10.0.0.2:5000 in last 1000 ms".
+ *
+ * @author Jimmie Nilsson jini6619
+ */
+public class EventLog {
+    private static final long IDLE_PARK_NANOS = 50_000_000L;
+
+    private final long intervalMs;
+    private final Queue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final Set<RateLimitedEvent> events = ConcurrentHashMap.newKeySet();
+    private volatile boolean running;
+    private Thread writer;
+
+    /**
+     * Severity of a logged event. Warnings and errors are written to standard error.
+     */
+    public enum Level {
+        INFO, WARN, ERROR
+    }
+
+    private static final class Entry {
+        private final Instant time = Instant.now();
+        private final Level level;
+        private final String message;
+
+        private Entry(Level level, String message) {
+            this.level = level;
+            this.message = message;
+        }
+    }
+
+    /**
+     * A repeating event that is counted on the hot path and summarized once per interval.
+     */
+    public static final class RateLimitedEvent {
+        private final Level level;
+        private final String description;
+        private final AtomicLong count = new AtomicLong();
+        private volatile String lastDetail;
+
+        private RateLimitedEvent(Level level, String description) {
+            this.level = level;
+            this.description = description;
+        }
+
+        /**
+         * Records one occurrence of the event. Does not allocate.
+         *
+         * @param detail A detail kept for the summary line, such as an exception message.
+         */
+        public void record(String detail) {
+            lastDetail = detail;
+            count.incrementAndGet();
+        }
+    }
+
+    /**
+     * Constructs an EventLog that summarizes rate limited events at the given interval.
+     *
+     * @param intervalMs The summary interval in milliseconds.
+     */
+    public EventLog(long intervalMs) {
+        this.intervalMs = intervalMs;
+    }
+
+    /**
+     * Starts the background writer thread.
+     */
+    public void start() {
+        running = true;
+        writer = new Thread(this::writeLoop, "event-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Stops the writer thread after writing everything still queued.
+     */
+    public void stop() {
+        running = false;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Queues a message for the writer thread.
+     *
+     * @param level   The severity of the message.
+     * @param message The message.
+     */
+    public void log(Level level, String message) {
+        queue.offer(new Entry(level, message));
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * Registers a rate limited event.
+     *
+     * @param level       The severity of the event.
+     * @param description What the event counts, for example "send errors to /10.0.0.2:5000".
+     * @return The event to record occurrences on.
+     */
+    public RateLimitedEvent register(Level level, String description) {
+        RateLimitedEvent event = new RateLimitedEvent(level, description);
+        events.add(event);
+        return event;
+    }
+
+    /**
+     * Unregisters a rate limited event, writing a final summary if occurrences are pending.
+     *
+     * @param event The event to unregister, may be null.
+     */
+    public void unregister(RateLimitedEvent event) {
+        if (event != null && events.remove(event)) {
+            summarize(event, intervalMs);
+        }
+    }
+
+    private void writeLoop() {
+        long lastSummary = System.currentTimeMillis();
+        while (running) {
+            drain();
+            long now = System.currentTimeMillis();
+            if (now - lastSummary >= intervalMs) {
+                for (RateLimitedEvent event : events) {
+                    summarize(event, now - lastSummary);
+                }
+                lastSummary = now;
+            }
+            LockSupport.parkNanos(Math.min(IDLE_PARK_NANOS, intervalMs * 1_000_000L));
+        }
+        for (RateLimitedEvent event : events) {
+            summarize(event, System.currentTimeMillis() - lastSummary);
+        }
+        drain();
+    }
+
+    private void summarize(RateLimitedEvent event, long elapsedMs) {
+        long count = event.count.getAndSet(0);
+        if (count > 0) {
+            String message = count + " " + event.description + " in last " + elapsedMs + " ms";
+            String detail = event.lastDetail;
+            queue.offer(new Entry(event.level, detail != null ? message + " (last: " + detail + ")" : message));
+        }
+    }
+
+    private void drain() {
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            String line = entry.time + " " + entry.level + " " + entry.message;
+            if (entry.level == Level.INFO) {
+                System.out.println(line);
+            } else {
+                System.err.println(line);
+            }
+        }
+    }
+}
@@ -0,0 +1,346 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.Arrays;
+
+/**
+ * Receives an RTP stream protected by row and column XOR parity from FecEncoder, rebuilds lost
+ * media datagrams and forwards the MPEG-TS payloads in order to a local address where the
+ * media player listens.
+ * <p>
+ * Plain MPEG-TS datagrams, sent by a server without forward error correction, are forwarded as is.
+ *
+ * @author Jimmie Nilsson jini6619
+ */
+public class FecDecoder {
+    private static final int MEDIA_SLOTS = 512;
+    private static final int PARITY_SLOTS = 64;
+    private static final int DEFAULT_PROTECTION_SPAN = 100; // largest matrix FecEncoder allows
+    // Media packets this far behind the highest received one are lost, not just late or reordered
+    private static final int REORDER_ALLOWANCE = 2;
+
+    private final int streamPort;
+    private final InetSocketAddress forwardAddress;
+    private DatagramSocket mediaSocket;
+    private DatagramSocket columnSocket;
+    private DatagramSocket rowSocket;
+    private DatagramSocket forwardSocket;
+    private DatagramPacket forwardPacket;
+    private volatile boolean running;
+
+    // Media packets waiting to be forwarded, indexed by extended sequence number
+    private final byte[][] mediaPayload = new byte[MEDIA_SLOTS][FecPacket.MAX_PAYLOAD_SIZE];
+    private final int[] mediaLength = new int[MEDIA_SLOTS];
+    private final long[] mediaSequence = new long[MEDIA_SLOTS];
+
+    // Parity packets waiting for a recovery opportunity
+    private final byte[][] parityPayload = new byte[PARITY_SLOTS][FecPacket.MAX_PAYLOAD_SIZE];
+    private final long[] parityBase = new long[PARITY_SLOTS];
+    private final int[] parityOffset = new int[PARITY_SLOTS];
+    private final int[] parityCount = new int[PARITY_SLOTS];
+    private final int[] parityLengthRecovery = new int[PARITY_SLOTS];
+    private final boolean[] parityUsed = new boolean[PARITY_SLOTS];
+    private int nextParitySlot;
+
+    private long nextSequence = -1;
+    private long highestSequence = -1;
+    private int protectionSpan = -1;
+    private boolean inLossBurst;
+
+    private long receivedPackets;
+    private long recoveredPackets;
+    private long lostPackets;
+    private long unrecoverableBursts;
+
+    /**
+     * Constructs a FecDecoder.
+     *
+     * @param streamPort     The media port the server sends to. Parity arrives on port + 2 and port + 4.
+     * @param forwardAddress The address to forward the rebuilt MPEG-TS stream to.
+     */
+    public FecDecoder(int streamPort, InetSocketAddress forwardAddress) {
+        this.streamPort = streamPort;
+        this.forwardAddress = forwardAddress;
+        Arrays.fill(mediaSequence, -1);
+    }
+
+    /**
+     * Opens the sockets and starts a receiving thread for the media, column and row streams.
+     *
+     * @throws SocketException If one of the sockets could not be opened.
+     */
+    public void start() throws SocketException {
+        mediaSocket = new DatagramSocket(streamPort);
+        columnSocket = new DatagramSocket(streamPort + FecPacket.COLUMN_PORT_OFFSET);
+        rowSocket = new DatagramSocket(streamPort + FecPacket.ROW_PORT_OFFSET);
+        forwardSocket = new DatagramSocket();
+        forwardPacket = new DatagramPacket(new byte[0], 0, forwardAddress);
+        running = true;
+
+        new Thread(() -> receive(mediaSocket, FecPacket.MAX_MEDIA_SIZE, false)).start();
+        new Thread(() -> receive(columnSocket, FecPacket.MAX_PARITY_SIZE, true)).start();
+        new Thread(() -> receive(rowSocket, FecPacket.MAX_PARITY_SIZE, true)).start();
+    }
+
+    /**
+     * Stops the receiving threads and closes all sockets.
+     */
+    public void close() {
+        running = false;
+        for (DatagramSocket socket : new DatagramSocket[]{mediaSocket, columnSocket, rowSocket, forwardSocket}) {
+            if (socket != null) {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of media datagrams received from the network.
+     *
+     * @return The number of received media datagrams.
+     */
+    public synchronized long getReceivedPackets() {
+        return receivedPackets;
+    }
+
+    /**
+     * Gets the number of lost media datagrams rebuilt from parity.
+     *
+     * @return The number of recovered datagrams.
+     */
+    public synchronized long getRecoveredPackets() {
+        return recoveredPackets;
+    }
+
+    /**
+     * Gets the number of media datagrams that could not be rebuilt and were skipped.
+     *
+     * @return The number of lost datagrams.
+     */
+    public synchronized long getLostPackets() {
+        return lostPackets;
+    }
+
+    /**
+     * Gets the number of runs of consecutive datagrams that could not be rebuilt.
+     *
+     * @return The number of unrecoverable bursts.
+     */
+    public synchronized long getUnrecoverableBursts() {
+        return unrecoverableBursts;
+    }
+
+    /**
+     * Receives datagrams from a socket until the decoder is closed.
+     *
+     * @param socket  The socket to receive from.
+     * @param maxSize The largest expected datagram.
+     * @param parity  True if the socket carries parity datagrams.
+     */
+    private void receive(DatagramSocket socket, int maxSize, boolean parity) {
+        byte[] buffer = new byte[maxSize];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        try {
+            while (running) {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                if (parity) {
+                    onParity(buffer, packet.getLength());
+                } else {
+                    onMedia(buffer, packet.getLength());
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("Error receiving stream: " + e.getMessage());
+            }
+        }
+    }
+
+    private synchronized void onMedia(byte[] buffer, int length) throws IOException {
+        if (FecPacket.isPlainTransportStream(buffer, length)) {
+            forward(buffer, 0, length);
+            return;
+        }
+        if (length <= FecPacket.RTP_HEADER_SIZE) {
+            return;
+        }
+        long sequence = extend(FecPacket.readShort(buffer, 2));
+        if (nextSequence < 0) {
+            nextSequence = sequence;
+        }
+        if (sequence < nextSequence) {
+            return; // late or duplicate
+        }
+        receivedPackets++;
+        // Move the window ahead if the packet would not fit in it
+        while (sequence - nextSequence >= MEDIA_SLOTS) {
+            advance();
+        }
+        store(sequence, buffer, FecPacket.RTP_HEADER_SIZE, length - FecPacket.RTP_HEADER_SIZE);
+        highestSequence = Math.max(highestSequence, sequence);
+        recover();
+        deliver();
+    }
+
+    private synchronized void onParity(byte[] buffer, int length) throws IOException {
+        int payloadOffset = FecPacket.RTP_HEADER_SIZE + FecPacket.FEC_HEADER_SIZE;
+        if (length <= payloadOffset || nextSequence < 0) {
+            return;
+        }
+        int header = FecPacket.RTP_HEADER_SIZE;
+        long base = extend(FecPacket.readShort(buffer, header));
+        int offset = buffer[header + 13] & 0xFF;
+        int count = buffer[header + 14] & 0xFF;
+        if (offset == 0 || count == 0 || base + (long) (count - 1) * offset < nextSequence) {
+            return;
+        }
+        protectionSpan = Math.max(protectionSpan, offset * count);
+
+        int slot = nextParitySlot;
+        nextParitySlot = (nextParitySlot + 1) % PARITY_SLOTS;
+        int payloadLength = length - payloadOffset;
+        byte[] payload = parityPayload[slot];
+        System.arraycopy(buffer, payloadOffset, payload, 0, payloadLength);
+        Arrays.fill(payload, payloadLength, payload.length, (byte) 0);
+        parityBase[slot] = base;
+        parityOffset[slot] = offset;
+        parityCount[slot] = count;
+        parityLengthRecovery[slot] = FecPacket.readShort(buffer, header + 2);
+        parityUsed[slot] = true;
+
+        recover();
+        deliver();
+    }
+
+    /**
+     * Rebuilds missing media packets from parity packets that protect exactly one missing packet,
+     * repeating while rebuilt packets make further recoveries possible.
+     * <p>
+     * Parity arrives on its own sockets and often before the media it covers, so a packet only
+     * counts as missing once media more than REORDER_ALLOWANCE packets after it has arrived.
+     * A parity packet still waiting for some of its media is kept until that media arrives.
+     */
+    private void recover() {
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (int slot = 0; slot < PARITY_SLOTS; slot++) {
+                if (!parityUsed[slot]) {
+                    continue;
+                }
+                long missing = -1;
+                int missingCount = 0;
+                int pendingCount = 0;
+                for (int i = 0; i < parityCount[slot]; i++) {
+                    long sequence = parityBase[slot] + (long) i * parityOffset[slot];
+                    if (isStored(sequence)) {
+                        continue;
+                    }
+                    if (highestSequence - sequence > REORDER_ALLOWANCE) {
+                        missing = sequence;
+                        missingCount++;
+                    } else {
+                        pendingCount++;
+                    }
+                }
+                long last = parityBase[slot] + (long) (parityCount[slot] - 1) * parityOffset[slot];
+                if ((missingCount == 0 && pendingCount == 0) || last < nextSequence) {
+                    parityUsed[slot] = false;
+                } else if (missingCount == 1 && pendingCount == 0 && missing >= nextSequence
+                        && missing - nextSequence < MEDIA_SLOTS) {
+                    rebuild(slot, missing);
+                    parityUsed[slot] = false;
+                    progress = true;
+                }
+            }
+        }
+    }
+
+    private void rebuild(int slot, long missing) {
+        int index = slotOf(missing);
+        byte[] target = mediaPayload[index];
+        System.arraycopy(parityPayload[slot], 0, target, 0, FecPacket.MAX_PAYLOAD_SIZE);
+        int length = parityLengthRecovery[slot];
+        for (int i = 0; i < parityCount[slot]; i++) {
+            long sequence = parityBase[slot] + (long) i * parityOffset[slot];
+            if (sequence != missing) {
+                int other = slotOf(sequence);
+                FecPacket.xor(mediaPayload[other], 0, target, 0, mediaLength[other]);
+                length ^= mediaLength[other];
+            }
+        }
+        mediaLength[index] = Math.min(length, FecPacket.MAX_PAYLOAD_SIZE);
+        mediaSequence[index] = missing;
+        recoveredPackets++;
+    }
+
+    /**
+     * Forwards media packets in sequence order. A missing packet is skipped once packets far
+     * enough ahead have arrived that its parity can no longer be expected.
+     * Forwarded packets stay in the window, since they may still be needed to rebuild others.
+     */
+    private void deliver() throws IOException {
+        while (nextSequence >= 0 && nextSequence <= highestSequence) {
+            // Until the first parity arrives the matrix size is unknown, so assume the largest one
+            int span = protectionSpan < 0 ? DEFAULT_PROTECTION_SPAN : protectionSpan;
+            if (!isStored(nextSequence) && highestSequence - nextSequence <= 2L * span) {
+                return;
+            }
+            advance();
+        }
+    }
+
+    /**
+     * Forwards the next expected packet, or counts it as lost if it is missing, and moves on.
+     */
+    private void advance() throws IOException {
+        if (isStored(nextSequence)) {
+            int index = slotOf(nextSequence);
+            forward(mediaPayload[index], 0, mediaLength[index]);
+            inLossBurst = false;
+        } else {
+            lostPackets++;
+            if (!inLossBurst) {
+                unrecoverableBursts++;
+                inLossBurst = true;
+            }
+        }
+        nextSequence++;
+    }
+
+    private void store(long sequence, byte[] buffer, int offset, int length) {
+        int index = slotOf(sequence);
+        System.arraycopy(buffer, offset, mediaPayload[index], 0, length);
+        mediaLength[index] = length;
+        mediaSequence[index] = sequence;
+    }
+
+    private boolean isStored(long sequence) {
+        return mediaSequence[slotOf(sequence)] == sequence;
+    }
+
+    private static int slotOf(long sequence) {
+        return (int) Math.floorMod(sequence, (long) MEDIA_SLOTS);
+    }
+
+    /**
+     * Extends a 16 bit RTP sequence number to the one closest to the next expected sequence.
+     *
+     * @param sequence The 16 bit sequence number.
+     * @return The extended sequence number.
+     */
+    private long extend(int sequence) {
+        if (nextSequence < 0) {
+            return sequence;
+        }
+        return nextSequence + (short) (sequence - (int) (nextSequence & 0xFFFF));
+    }
+
+    private void forward(byte[] buffer, int offset, int length) throws IOException {
+        forwardPacket.setData(buffer, offset, length);
+        forwardSocket.send(forwardPacket);
+    }
+}
@@ -0,0 +1,178 @@
+import java.util.Arrays;
+
+/**
+ * Produces SMPTE 2022-1 style row and column XOR parity for the media datagrams of a stream.
+ * <p>
+ * Media packets are arranged in a matrix of L columns and D rows. Every completed row produces a
+ * row parity datagram and every completed column produces a column parity datagram, which lets a
+ * receiver rebuild single losses per row and bursts of up to L consecutive losses.
+ * Parity is accumulated in preallocated buffers, so encoding does not allocate.
+ *
+ * @author Jimmie Nilsson jini6619
+ */
+public class FecEncoder {
+    private final int columns;
+    private final int rows;
+    private final int ssrc;
+
+    private final byte[] mediaDatagram = new byte[FecPacket.MAX_MEDIA_SIZE];
+
+    // Row parity, accumulated directly in the payload area of the outgoing datagram
+    private final byte[] rowDatagram = new byte[FecPacket.MAX_PARITY_SIZE];
+    private int rowBase;
+    private int rowLengthRecovery;
+    private int rowTimestampRecovery;
+    private int rowMaxLength;
+
+    // Column parity, one outgoing datagram per column
+    private final byte[][] columnDatagrams;
+    private final int[] columnBase;
+    private final int[] columnLengthRecovery;
+    private final int[] columnTimestampRecovery;
+    private final int[] columnMaxLength;
+
+    private int matrixIndex;
+    private int mediaSequence;
+    private int rowSequence;
+    private int columnSequence;
+
+    private long mediaPackets;
+    private long mediaBytes;
+    private long parityPackets;
+    private long parityBytes;
+
+    /**
+     * Receives the datagrams produced by the encoder.
+     */
+    public interface DatagramSink {
+        /**
+         * Called for every media and parity datagram produced by the encoder.
+         *
+         * @param datagram   The datagram buffer, only valid for the duration of the call.
+         * @param length     The length of the datagram.
+         * @param portOffset The offset from the client's media port to send the datagram to.
+         */
+        void send(byte[] datagram, int length, int portOffset);
+    }
+
+    /**
+     * Constructs a FecEncoder with the given matrix size.
+     *
+     * @param columns The number of columns (L), between 1 and 20.
+     * @param rows    The number of rows (D), between 1 and 20.
+     * @throws IllegalArgumentException If the matrix size is out of range or L x D exceeds 100.
+     */
+    public FecEncoder(int columns, int rows) {
+        if (columns < 1 || columns > 20 || rows < 1 || rows > 20 || columns * rows > 100) {
+            throw new IllegalArgumentException("FEC matrix must be at most 20x20 with L x D <= 100, got " + columns + "x" + rows);
+        }
+        this.columns = columns;
+        this.rows = rows;
+        this.ssrc = (int) System.nanoTime();
+        this.columnDatagrams = new byte[columns][FecPacket.MAX_PARITY_SIZE];
+        this.columnBase = new int[columns];
+        this.columnLengthRecovery = new int[columns];
+        this.columnTimestampRecovery = new int[columns];
+        this.columnMaxLength = new int[columns];
+    }
+
+    /**
+     * Wraps a media payload in an RTP datagram, passes it to the sink and adds it to the parity
+     * matrix. Any row or column parity completed by the payload is passed to the sink after it.
+     *
+     * @param payload The MPEG-TS payload.
+     * @param length  The payload length, at most FecPacket.MAX_PAYLOAD_SIZE.
+     * @param sink    The sink receiving the produced datagrams.
+     */
+    public void encode(byte[] payload, int length, DatagramSink sink) {
+        int sequence = mediaSequence;
+        int timestamp = (int) (System.nanoTime() / 11_111L); // 90 kHz clock
+        mediaSequence = (mediaSequence + 1) & 0xFFFF;
+
+        FecPacket.writeRtpHeader(mediaDatagram, FecPacket.PAYLOAD_TYPE_MP2T, sequence, timestamp, ssrc);
+        System.arraycopy(payload, 0, mediaDatagram, FecPacket.RTP_HEADER_SIZE, length);
+        sink.send(mediaDatagram, FecPacket.RTP_HEADER_SIZE + length, FecPacket.MEDIA_PORT_OFFSET);
+        mediaPackets++;
+        mediaBytes += length;
+
+        int column = matrixIndex % columns;
+        int row = matrixIndex / columns;
+        int payloadOffset = FecPacket.RTP_HEADER_SIZE + FecPacket.FEC_HEADER_SIZE;
+
+        if (column == 0) {
+            Arrays.fill(rowDatagram, payloadOffset, payloadOffset + rowMaxLength, (byte) 0);
+            rowBase = sequence;
+            rowLengthRecovery = 0;
+            rowTimestampRecovery = 0;
+            rowMaxLength = 0;
+        }
+        byte[] columnDatagram = columnDatagrams[column];
+        if (row == 0) {
+            Arrays.fill(columnDatagram, payloadOffset, payloadOffset + columnMaxLength[column], (byte) 0);
+            columnBase[column] = sequence;
+            columnLengthRecovery[column] = 0;
+            columnTimestampRecovery[column] = 0;
+            columnMaxLength[column] = 0;
+        }
+
+        FecPacket.xor(payload, 0, rowDatagram, payloadOffset, length);
+        rowLengthRecovery ^= length;
+        rowTimestampRecovery ^= timestamp;
+        rowMaxLength = Math.max(rowMaxLength, length);
+
+        FecPacket.xor(payload, 0, columnDatagram, payloadOffset, length);
+        columnLengthRecovery[column] ^= length;
+        columnTimestampRecovery[column] ^= timestamp;
+        columnMaxLength[column] = Math.max(columnMaxLength[column], length);
+
+        if (column == columns - 1) {
+            FecPacket.writeRtpHeader(rowDatagram, FecPacket.PAYLOAD_TYPE_FEC, rowSequence, timestamp, ssrc);
+            FecPacket.writeFecHeader(rowDatagram, rowBase, rowLengthRecovery, rowTimestampRecovery, true, 1, columns);
+            rowSequence = (rowSequence + 1) & 0xFFFF;
+            emitParity(sink, rowDatagram, payloadOffset + rowMaxLength, FecPacket.ROW_PORT_OFFSET, rowMaxLength);
+        }
+        if (row == rows - 1) {
+            FecPacket.writeRtpHeader(columnDatagram, FecPacket.PAYLOAD_TYPE_FEC, columnSequence, timestamp, ssrc);
+            FecPacket.writeFecHeader(columnDatagram, columnBase[column], columnLengthRecovery[column],
+                    columnTimestampRecovery[column], false, columns, rows);
+            columnSequence = (columnSequence + 1) & 0xFFFF;
+            emitParity(sink, columnDatagram, payloadOffset + columnMaxLength[column], FecPacket.COLUMN_PORT_OFFSET, columnMaxLength[column]);
+        }
+
+        matrixIndex = (matrixIndex + 1) % (columns * rows);
+    }
+
+    /**
+     * Gets the number of media datagrams encoded.
+     *
+     * @return The number of media datagrams.
+     */
+    public long getMediaPackets() {
+        return mediaPackets;
+    }
+
+    /**
+     * Gets the number of parity datagrams produced.
+     *
+     * @return The number of parity datagrams.
+     */
+    public long getParityPackets() {
+        return parityPackets;
+    }
+
+    /**
+     * Gets the parity overhead as the ratio of parity payload bytes to media payload bytes.
+     * Before anything has been encoded, the expected overhead of the matrix is returned.
+     *
+     * @return The overhead, for example 0.4 for 40 percent.
+     */
+    public double getOverhead() {
+        return mediaBytes == 0 ? (double) (columns + rows) / (columns * rows) : (double) parityBytes / mediaBytes;
+    }
+
+    private void emitParity(DatagramSink sink, byte[] datagram, int length, int portOffset, int payloadLength) {
+        sink.send(datagram, length, portOffset);
+        parityPackets++;
+        parityBytes += payloadLength;
+    }
+}
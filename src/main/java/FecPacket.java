@@ -0,0 +1,125 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Packet layout and helpers shared by FecEncoder and FecDecoder.
+ * <p>
+ * When forward error correction is used, media datagrams are sent with an RTP header carrying a
+ * sequence number, and parity datagrams follow the SMPTE 2022-1 (Pro-MPEG) layout: an RTP header,
+ * a 16 byte FEC header and the XOR of the protected media payloads. Column parity is sent to the
+ * media port + 2 and row parity to the media port + 4.
+ *
+ * @author Jimmie Nilsson jini6619
+ */
+public final class FecPacket {
+    public static final int RTP_HEADER_SIZE = 12;
+    public static final int FEC_HEADER_SIZE = 16;
+    public static final int MAX_PAYLOAD_SIZE = 1316;
+    public static final int MAX_MEDIA_SIZE = RTP_HEADER_SIZE + MAX_PAYLOAD_SIZE;
+    public static final int MAX_PARITY_SIZE = RTP_HEADER_SIZE + FEC_HEADER_SIZE + MAX_PAYLOAD_SIZE;
+
+    public static final int MEDIA_PORT_OFFSET = 0;
+    public static final int COLUMN_PORT_OFFSET = 2;
+    public static final int ROW_PORT_OFFSET = 4;
+
+    static final int PAYLOAD_TYPE_MP2T = 33;
+    static final int PAYLOAD_TYPE_FEC = 96;
+
+    // Reads and writes eight bytes at a time so the XOR loop works on whole words
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private FecPacket() {
+    }
+
+    /**
+     * XORs a range of bytes from the source into the destination, eight bytes at a time.
+     *
+     * @param src    The source array.
+     * @param srcOff The offset in the source array.
+     * @param dst    The destination array, modified in place.
+     * @param dstOff The offset in the destination array.
+     * @param length The number of bytes to XOR.
+     */
+    static void xor(byte[] src, int srcOff, byte[] dst, int dstOff, int length) {
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            long value = (long) LONGS.get(dst, dstOff + i) ^ (long) LONGS.get(src, srcOff + i);
+            LONGS.set(dst, dstOff + i, value);
+        }
+        for (; i < length; i++) {
+            dst[dstOff + i] ^= src[srcOff + i];
+        }
+    }
+
+    /**
+     * Writes an RTP header at the start of the buffer.
+     *
+     * @param buffer      The buffer to write to.
+     * @param payloadType The RTP payload type.
+     * @param sequence    The 16 bit sequence number.
+     * @param timestamp   The 90 kHz timestamp.
+     * @param ssrc        The synchronization source identifier.
+     */
+    static void writeRtpHeader(byte[] buffer, int payloadType, int sequence, int timestamp, int ssrc) {
+        buffer[0] = (byte) 0x80; // version 2, no padding, no extension, no CSRC
+        buffer[1] = (byte) payloadType;
+        writeShort(buffer, 2, sequence);
+        writeInt(buffer, 4, timestamp);
+        writeInt(buffer, 8, ssrc);
+    }
+
+    /**
+     * Writes the FEC header that follows the RTP header of a parity datagram.
+     *
+     * @param buffer         The buffer to write to.
+     * @param snBase         The sequence number of the first protected media packet.
+     * @param lengthRecovery The XOR of the protected payload lengths.
+     * @param tsRecovery     The XOR of the protected timestamps.
+     * @param row            True for row parity, false for column parity.
+     * @param offset         The sequence number distance between protected packets.
+     * @param count          The number of protected packets.
+     */
+    static void writeFecHeader(byte[] buffer, int snBase, int lengthRecovery, int tsRecovery,
+                               boolean row, int offset, int count) {
+        int base = RTP_HEADER_SIZE;
+        writeShort(buffer, base, snBase);
+        writeShort(buffer, base + 2, lengthRecovery);
+        buffer[base + 4] = (byte) (0x80 | PAYLOAD_TYPE_MP2T); // extension bit and payload type recovery
+        buffer[base + 5] = 0; // mask, unused
+        buffer[base + 6] = 0;
+        buffer[base + 7] = 0;
+        writeInt(buffer, base + 8, tsRecovery);
+        buffer[base + 12] = (byte) (row ? 0x40 : 0x00); // D bit: 0 for columns, 1 for rows, XOR type 0
+        buffer[base + 13] = (byte) offset;
+        buffer[base + 14] = (byte) count;
+        buffer[base + 15] = 0; // SN base extension, unused
+    }
+
+    /**
+     * Checks whether a datagram is a plain MPEG-TS datagram rather than an RTP datagram.
+     *
+     * @param buffer The datagram.
+     * @param length The datagram length.
+     * @return True if the datagram starts with the TS sync byte.
+     */
+    static boolean isPlainTransportStream(byte[] buffer, int length) {
+        return length > 0 && (buffer[0] & 0xFF) == TsPacket.SYNC_BYTE;
+    }
+
+    static int readShort(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xFF) << 8) | (buffer[offset + 1] & 0xFF);
+    }
+
+    private static void writeShort(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 8);
+        buffer[offset + 1] = (byte) value;
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+}
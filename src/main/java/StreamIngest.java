@@ -0,0 +1,274 @@
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Manages the streamer connections feeding a channel. A channel accepts one primary and one
+ * backup (hot-standby) streamer at the same time, but only the primary is forwarded to receivers.
+ * <p>
+ * When the primary stalls for longer than the configured threshold, or disconnects, the next
+ * keyframe from the backup makes it the new primary, and forwarding starts at that keyframe.
+ * Continuity counters of the backup are rewritten so no packets look lost, and the first packet
+ * of each PID after the switch gets the discontinuity indicator, since the backup's encoder has
+ * its own PCR/PTS clock. Packets without an adaptation field, such as PAT and PMT, carry no clock
+ * and are left without the flag.
+ * <p>
+ * The ingest lock only guards this bookkeeping. Forwarding to the sink is serialized by a separate
+ * lock, so connection changes never wait for the fan-out to receivers. Packets from a backup
+ * while the primary is healthy only refresh the backup's liveness and take no lock at all.
+ *
+ * @author Jimmie Nilsson jini6619
+ */
+public class StreamIngest {
+    private final Consumer<byte[]> packetSink;
+    private final long stallThresholdNanos;
+    private final EventLog eventLog;
+    // Held while forwarding, so packets reach the sink one at a time and in bookkeeping order
+    private final Object forwardLock = new Object();
+
+    // Written under the ingest lock, read without it to let a standby backup skip the lock
+    private volatile Source primary;
+    private volatile Source backup;
+    // A streamer that became primary while no stream was forwarded starts at its first keyframe
+    private boolean awaitingKeyframe;
+
+    // Continuity counter rewriting for the forwarded stream, indexed by PID
+    private final int[] lastContinuityCounter = new int[TsPacket.PID_COUNT];
+    private final int[] continuityOffset = new int[TsPacket.PID_COUNT];
+    private final boolean[] continuityResync = new boolean[TsPacket.PID_COUNT];
+    private final boolean[] discontinuityPending = new boolean[TsPacket.PID_COUNT];
+
+    private long failoverStartNanos = -1;
+    private int failoverCount;
+    private volatile long lastFailoverMillis = -1;
+
+    /**
+     * A single streamer connection registered with the ingest.
+     */
+    public static final class Source {
+        private final String name;
+        private volatile long lastPacketNanos;
+
+        private Source(String name) {
+            this.name = name;
+            this.lastPacketNanos = System.nanoTime();
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * Constructs a StreamIngest that forwards the primary streamer's packets to the given sink.
+     *
+     * @param packetSink       Receives every packet that should be sent to the receivers.
+     * @param stallThresholdMs How long the primary may go without data before the backup takes over.
+     * @param eventLog         The log for streamer events, written asynchronously so the ingest lock
+     *                         is never held during console output.
+     */
+    public StreamIngest(Consumer<byte[]> packetSink, long stallThresholdMs, EventLog eventLog) {
+        this.packetSink = packetSink;
+        this.stallThresholdNanos = stallThresholdMs * 1_000_000L;
+        this.eventLog = eventLog;
+        Arrays.fill(lastContinuityCounter, -1);
+    }
+
+    /**
+     * Registers a new streamer connection. The first connection becomes the primary and the
+     * second one the backup. A connection made after the primary left, while the backup is still
+     * waiting for a keyframe, takes the empty primary slot and starts at its own first keyframe.
+     *
+     * @param name A name for the connection, used in log messages.
+     * @return The registered source, or null if both a primary and a backup are already connected.
+     */
+    public synchronized Source connect(String name) {
+        Source source = new Source(name);
+        if (primary == null && backup == null) {
+            primary = source;
+            eventLog.log(EventLog.Level.INFO, "Primary streamer: " + name);
+        } else if (primary == null) {
+            primary = source;
+            awaitingKeyframe = true;
+            eventLog.log(EventLog.Level.INFO, "Primary streamer: " + name + ", waiting for keyframe");
+        } else if (backup == null) {
+            backup = source;
+            eventLog.log(EventLog.Level.INFO, "Backup streamer: " + name);
+        } else {
+            return null;
+        }
+        return source;
+    }
+
+    /**
+     * Removes a streamer connection. If the primary leaves while a backup is connected, the backup
+     * takes over at its next keyframe.
+     *
+     * @param source The source that disconnected.
+     * @return True if no streamer is left to take over, meaning the stream has stopped.
+     */
+    public synchronized boolean disconnect(Source source) {
+        if (source == primary) {
+            primary = null;
+            awaitingKeyframe = false;
+            if (backup != null && failoverStartNanos < 0) {
+                failoverStartNanos = source.lastPacketNanos;
+            }
+            return backup == null;
+        }
+        if (source == backup) {
+            backup = null;
+            // Without a backup there is no failover in progress, unless a new primary is starting up
+            if (!awaitingKeyframe) {
+                failoverStartNanos = -1;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Offers a packet read from one of the streamer connections. Packets from the primary are
+     * forwarded, packets from the backup are only used to detect when it can take over.
+     *
+     * @param source The connection the packet was read from.
+     * @param packet The packet, made up of whole MPEG-TS packets.
+     */
+    public void offer(Source source, byte[] packet) {
+        long now = System.nanoTime();
+        source.lastPacketNanos = now;
+
+        // A backup standing by for a healthy primary only needs the timestamp above
+        Source current = primary;
+        if (source == backup && current != null && now - current.lastPacketNanos < stallThresholdNanos) {
+            return;
+        }
+
+        synchronized (forwardLock) {
+            synchronized (this) {
+                packet = admit(source, packet, now);
+                if (packet == null) {
+                    return;
+                }
+                rewriteContinuityCounters(packet);
+            }
+            packetSink.accept(packet);
+        }
+    }
+
+    /**
+     * Gets the number of times the backup streamer has taken over from the primary.
+     *
+     * @return The number of failovers.
+     */
+    public synchronized int getFailoverCount() {
+        return failoverCount;
+    }
+
+    /**
+     * Gets the time from the primary's last packet to the first forwarded packet from the backup
+     * during the most recent failover.
+     *
+     * @return The failover time in milliseconds, or -1 if no failover has happened.
+     */
+    public long getLastFailoverMillis() {
+        return lastFailoverMillis;
+    }
+
+    /**
+     * Decides whether a packet is forwarded, taking care of stall detection and switching.
+     *
+     * @param source The connection the packet was read from.
+     * @param packet The packet.
+     * @param now    The current time from System.nanoTime().
+     * @return The part of the packet to forward, or null if nothing is forwarded.
+     */
+    private byte[] admit(Source source, byte[] packet, long now) {
+        if (source == backup) {
+            if (primary != null && now - primary.lastPacketNanos < stallThresholdNanos) {
+                return null;
+            }
+            if (failoverStartNanos < 0) {
+                failoverStartNanos = primary != null ? primary.lastPacketNanos : now;
+                eventLog.log(EventLog.Level.WARN, "Primary streamer stalled, waiting for keyframe from backup");
+            }
+            int keyframe = TsPacket.findRandomAccessPoint(packet);
+            if (keyframe < 0) {
+                return null;
+            }
+            Source oldPrimary = primary;
+            primary = backup;
+            backup = oldPrimary;
+            startFromKeyframe(now);
+            return fromKeyframe(packet, keyframe);
+        }
+        if (source != primary) {
+            return null;
+        }
+        if (awaitingKeyframe) {
+            int keyframe = TsPacket.findRandomAccessPoint(packet);
+            if (keyframe < 0) {
+                return null;
+            }
+            startFromKeyframe(now);
+            return fromKeyframe(packet, keyframe);
+        }
+        if (failoverStartNanos >= 0) {
+            // The primary recovered before the backup could take over
+            failoverStartNanos = -1;
+            eventLog.log(EventLog.Level.INFO, "Primary streamer recovered, failover cancelled");
+        }
+        return packet;
+    }
+
+    /**
+     * Forwards from the keyframe on, the packets before it belong to the streamer's previous GOP.
+     */
+    private static byte[] fromKeyframe(byte[] packet, int keyframe) {
+        return keyframe > 0 ? Arrays.copyOfRange(packet, keyframe, packet.length) : packet;
+    }
+
+    /**
+     * Completes a failover to the current primary, which starts forwarding at a keyframe.
+     *
+     * @param now The current time from System.nanoTime().
+     */
+    private void startFromKeyframe(long now) {
+        awaitingKeyframe = false;
+        Arrays.fill(continuityResync, true);
+        Arrays.fill(discontinuityPending, true);
+        failoverCount++;
+        lastFailoverMillis = failoverStartNanos >= 0 ? (now - failoverStartNanos) / 1_000_000L : 0;
+        failoverStartNanos = -1;
+        eventLog.log(EventLog.Level.WARN, "Failover to streamer " + primary + " completed in " + lastFailoverMillis + " ms");
+    }
+
+    /**
+     * Rewrites the continuity counters of the TS packets in the buffer so that each PID continues
+     * from the last counter forwarded before a failover, and marks the first packet of each PID
+     * after a failover as a discontinuity.
+     *
+     * @param packet The buffer of TS packets, modified in place.
+     */
+    private void rewriteContinuityCounters(byte[] packet) {
+        for (int i = 0; i + TsPacket.SIZE <= packet.length; i += TsPacket.SIZE) {
+            if (!TsPacket.isSynced(packet, i)) {
+                continue;
+            }
+            int pid = TsPacket.pid(packet, i);
+            int counter = packet[i + 3] & 0x0F;
+
+            if (discontinuityPending[pid]) {
+                TsPacket.setDiscontinuity(packet, i);
+                discontinuityPending[pid] = false;
+            }
+            if (continuityResync[pid] && TsPacket.hasPayload(packet, i)) {
+                int last = lastContinuityCounter[pid];
+                continuityOffset[pid] = last < 0 ? 0 : (last + 1 - counter) & 0x0F;
+                continuityResync[pid] = false;
+            }
+            counter = (counter + continuityOffset[pid]) & 0x0F;
+            packet[i + 3] = (byte) ((packet[i + 3] & 0xF0) | counter);
+            lastContinuityCounter[pid] = counter;
+        }
+    }
+}
@@ -54,19 +54,36 @@ public class StreamingClient {
         inputPanel.add(portLabel);
         inputPanel.add(portField);
 
-        // Video source selection currently only works for windows but this makes room for expansion
+        // Video source selection, editable so any source supported by CaptureSource can be typed in
         JLabel sourceLabel = new JLabel("Video Source:");
         JComboBox<String> sourceCombo = new JComboBox<>();
+        sourceCombo.setEditable(true);
         if (System.getProperty("os.name").toLowerCase().contains("win")) {
             sourceCombo.addItem("desktop");
         } else if (System.getProperty("os.name").toLowerCase().contains("mac")) {
             sourceCombo.addItem("default");
         } else {
+            sourceCombo.addItem("x11grab:0.0");
             sourceCombo.addItem("/dev/video0");
         }
+        sourceCombo.addItem("testsrc:1280x720@30");
         inputPanel.add(sourceLabel);
         inputPanel.add(sourceCombo);
 
+        // Media file selection, adds the chosen file to the sources
+        JLabel fileLabel = new JLabel("Video File:");
+        JButton fileButton = new JButton("Choose File...");
+        fileButton.addActionListener(e -> {
+            JFileChooser chooser = new JFileChooser();
+            if (chooser.showOpenDialog(frame) == JFileChooser.APPROVE_OPTION) {
+                String fileSource = "file:" + chooser.getSelectedFile().getAbsolutePath();
+                sourceCombo.addItem(fileSource);
+                sourceCombo.setSelectedItem(fileSource);
+            }
+        });
+        inputPanel.add(fileLabel);
+        inputPanel.add(fileButton);
+
         JButton startStopButton = new JButton("Start Streaming");
 
         videoDisplayLabel = new JLabel(); // JLabel for video display
@@ -93,7 +110,12 @@ public class StreamingClient {
                     return;
                 }
                 String videoSource = (String) sourceCombo.getSelectedItem();
-                videoStreamer = new VideoStreamer(videoSource, serverAddress, serverPort);
+                try {
+                    videoStreamer = new VideoStreamer(videoSource, serverAddress, serverPort);
+                } catch (IllegalArgumentException ex) {
+                    JOptionPane.showMessageDialog(frame, ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
 
                 // Start the streaming thread
                 streamingThread = new Thread(() -> {
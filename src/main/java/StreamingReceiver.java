@@ -5,6 +5,10 @@ import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
 
 /**
  * A client application to receive a video stream over UDP and manage chat functionality.
@@ -12,13 +16,19 @@ import java.io.IOException;
  * @author Jimmie Nilsson jini6619
  */
 public class StreamingReceiver {
+    private static final String REDIRECT_PREFIX = "REDIRECT:";
+    private static final int MAX_REDIRECTS = 3;
+
     private final int streamPort;
     private final int chatPort;
     private final String displayName;
     private final String serverAddress;
     private final String udpStreamUrl;
-    private ChatClient chatClient;
+    private final boolean useFec;
+    private FecDecoder fecDecoder;
+    private volatile ChatClient chatClient;
     private JTextArea chatArea;
+    private int redirects;
 
     /**
      * Constructs a StreamingReceiver instance.
@@ -29,11 +39,34 @@ public class StreamingReceiver {
      * @param displayName   The display name of the user.
      */
     public StreamingReceiver(String serverAddress, int streamPort, int chatPort, String displayName) {
+        this(serverAddress, streamPort, chatPort, displayName, false);
+    }
+
+    /**
+     * Constructs a StreamingReceiver instance, optionally using forward error correction.
+     * With forward error correction the stream is received by a FecDecoder, which also listens on
+     * stream port + 2 and + 4, and the rebuilt stream is passed to the media player over loopback.
+     *
+     * @param serverAddress The address of the server.
+     * @param streamPort    The port to receive the video stream.
+     * @param chatPort      The port for chat communication.
+     * @param displayName   The display name of the user.
+     * @param useFec        True to ask the server for forward error correction.
+     * @throws IllegalArgumentException If no local port could be found for the media player.
+     */
+    public StreamingReceiver(String serverAddress, int streamPort, int chatPort, String displayName, boolean useFec) {
         this.serverAddress = serverAddress;
         this.streamPort = streamPort;
         this.chatPort = chatPort;
         this.displayName = displayName;
-        udpStreamUrl = "udp://@:" + this.streamPort + "?pkt_size=1316";
+        this.useFec = useFec;
+        if (useFec) {
+            int playerPort = findFreeLocalPort();
+            fecDecoder = new FecDecoder(streamPort, new InetSocketAddress(InetAddress.getLoopbackAddress(), playerPort));
+            udpStreamUrl = "udp://@127.0.0.1:" + playerPort + "?pkt_size=1316";
+        } else {
+            udpStreamUrl = "udp://@:" + this.streamPort + "?pkt_size=1316";
+        }
     }
 
     /**
@@ -53,6 +86,7 @@ public class StreamingReceiver {
         JTextField streamPortField = new JTextField();
         JTextField chatPortField = new JTextField();
         JTextField displayNameField = new JTextField();
+        JCheckBox fecCheckBox = new JCheckBox();
 
         JPanel panel = new JPanel(new GridLayout(5, 2));
         panel.add(new JLabel("Server Address:"));
@@ -63,6 +97,8 @@ public class StreamingReceiver {
         panel.add(chatPortField);
         panel.add(new JLabel("Display Name:"));
         panel.add(displayNameField);
+        panel.add(new JLabel("Error Correction:"));
+        panel.add(fecCheckBox);
 
         int result = JOptionPane.showConfirmDialog(null, panel, "Enter Connection Details", JOptionPane.OK_CANCEL_OPTION);
         if (result == JOptionPane.OK_OPTION) {
@@ -76,7 +112,7 @@ public class StreamingReceiver {
                     JOptionPane.showMessageDialog(null, "Server address and display name cannot be empty.", "Invalid input", JOptionPane.ERROR_MESSAGE);
                 }
 
-                new StreamingReceiver(serverAddress, streamPort, chatPort, displayName).startClient();
+                new StreamingReceiver(serverAddress, streamPort, chatPort, displayName, fecCheckBox.isSelected()).startClient();
             } catch (NumberFormatException e) {
                 JOptionPane.showMessageDialog(null, "Stream Port and Chat Port must be valid integers.", "Invalid Input", JOptionPane.ERROR_MESSAGE);
             } catch (IllegalArgumentException e) {
@@ -96,11 +132,22 @@ public class StreamingReceiver {
      * Initializes the chat client and sets up message handling.
      */
     private void initializeChatClient() {
+        connectChatClient(serverAddress, chatPort);
+    }
+
+    /**
+     * Connects the chat client to a server and registers for the stream.
+     *
+     * @param serverAddress The address of the server.
+     * @param chatPort      The chat port of the server.
+     */
+    private void connectChatClient(String serverAddress, int chatPort) {
         chatClient = new ChatClient(serverAddress, chatPort);
-        chatClient.setMessageListener(this::appendChatMessage);
+        chatClient.setMessageListener(this::handleChatMessage);
         try {
             chatClient.connect();
-            chatClient.sendMessage("REGISTER" + ":" + displayName + ":" + streamPort); // Register on connect
+            String registration = "REGISTER" + ":" + displayName + ":" + streamPort;
+            chatClient.sendMessage(useFec ? registration + ":FEC" : registration); // Register on connect
         } catch (IOException e) {
             System.err.println("Failed to connect to chat server: " + e.getMessage());
         }
@@ -149,6 +196,11 @@ public class StreamingReceiver {
             @Override
             public void windowClosing(WindowEvent e) {
                 mediaPlayerComponent.release();
+                if (fecDecoder != null) {
+                    fecDecoder.close();
+                    System.out.println("FEC: received " + fecDecoder.getReceivedPackets() + ", recovered " + fecDecoder.getRecoveredPackets()
+                            + ", lost " + fecDecoder.getLostPackets() + " in " + fecDecoder.getUnrecoverableBursts() + " bursts");
+                }
                 chatClient.disconnect();
             }
         });
@@ -156,10 +208,60 @@ public class StreamingReceiver {
         frame.setVisible(true);
 
 
+        if (fecDecoder != null) {
+            try {
+                fecDecoder.start();
+            } catch (SocketException e) {
+                System.err.println("Failed to start FEC decoder: " + e.getMessage());
+            }
+        }
         initializeChatClient();
         mediaPlayerComponent.mediaPlayer().media().play(udpStreamUrl);
     }
 
+    /**
+     * Finds a free UDP port on the loopback address for the media player to listen on.
+     *
+     * @return A free port.
+     * @throws IllegalArgumentException If no port could be found.
+     */
+    private static int findFreeLocalPort() {
+        try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        } catch (SocketException e) {
+            throw new IllegalArgumentException("No free local port for the media player: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Handles a line from the server. A "REDIRECT:host:port" line means the server is at capacity,
+     * so the receiver registers with the given server instead. The stream keeps arriving on the
+     * same local port, so the media player does not need to be restarted.
+     *
+     * @param message The line received from the server.
+     */
+    private void handleChatMessage(String message) {
+        if (!message.startsWith(REDIRECT_PREFIX)) {
+            appendChatMessage(message);
+            return;
+        }
+        String target = message.substring(REDIRECT_PREFIX.length());
+        int separator = target.lastIndexOf(':');
+        if (redirects >= MAX_REDIRECTS || separator <= 0) {
+            appendChatMessage("Server is at capacity, could not redirect to " + target);
+            return;
+        }
+        try {
+            int targetPort = Integer.parseInt(target.substring(separator + 1));
+            redirects++;
+            appendChatMessage("Server is at capacity, redirecting to " + target);
+            chatClient.close();
+            connectChatClient(target.substring(0, separator), targetPort);
+        } catch (NumberFormatException e) {
+            appendChatMessage("Server is at capacity, could not redirect to " + target);
+        }
+    }
+
     /**
      * Appends a new chat message to the chat area.
      *
@@ -1,5 +1,10 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
 import java.io.*;
 import java.net.*;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -10,9 +15,31 @@ import java.util.concurrent.ConcurrentHashMap;
  * @author Jimmie Nilsson jini6619
  */
 public class StreamingServer {
+    private static final String DEFAULT_ROOM = "main";
+    private static final double CHAT_MESSAGES_PER_SECOND = 5;
+    private static final double CHAT_BURST = 10;
+    private static final long DEFAULT_BITRATE_BPS = 2_000_000; // VideoStreamer's encoder bitrate
+    private static final long ADMISSION_QUEUE_TIMEOUT_MS = 30_000;
+    private static final String STREAM_CHANNEL = "main";
+    private static final int THUMBNAIL_WIDTH = 320;
+
     private final int streamerPort;
     private final int chatPort;
+    private final long stallThresholdMs;
+    private StreamIngest ingest;
+    private FecEncoder fecEncoder;
+    private FecEncoder.DatagramSink fecSink;
+    private final DatagramPacket fecPacket = new DatagramPacket(new byte[0], 0);
+    private EgressBudget egressBudget;
+    private EgressBudget.Channel streamChannel;
+    private int thumbnailPort = -1;
+    private final Map<String, ThumbnailCache> thumbnails = new ConcurrentHashMap<>();
+    private ThumbnailCache streamThumbnail;
+    private final EventLog eventLog = new EventLog(1000);
+    private final ConcurrentHashMap<InetSocketAddress, EventLog.RateLimitedEvent> sendErrors = new ConcurrentHashMap<>();
+    private final ChatRooms chatRooms = new ChatRooms(Math.max(1, Runtime.getRuntime().availableProcessors() / 2), 50);
     private static final ConcurrentHashMap<InetSocketAddress, PrintWriter> clients = new ConcurrentHashMap<>();
+    private static final Set<InetSocketAddress> fecClients = ConcurrentHashMap.newKeySet();
 
     /**
      * Main entry point for the StreamingServer application.
@@ -23,15 +50,41 @@ public class StreamingServer {
      * @param args Command-line arguments:
      *             args[0] - Streamer port (optional).
      *             args[1] - Chat port (optional).
+     *             args[2] - Streamer stall threshold in milliseconds before failover (optional).
+     *             args[3] - FEC matrix columns (optional, together with args[4]).
+     *             args[4] - FEC matrix rows (optional).
+     *             <p>
+     *             An egress budget is enabled with the system property egress.serverMbps, and optionally
+     *             egress.channelMbps, egress.maxQueued and egress.redirect ("host:port" of another server).
+     *             Channel thumbnails are served over HTTP on the port given by the system property thumbnail.port.
      */
     public static void main(String[] args) {
-        if (args.length == 2) {
-            new StreamingServer(Integer.parseInt(args[0]), Integer.parseInt(args[1])).startServer();
+        StreamingServer server;
+        if (args.length == 5) {
+            server = new StreamingServer(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Long.parseLong(args[2]));
+            server.enableFec(Integer.parseInt(args[3]), Integer.parseInt(args[4]));
+        } else if (args.length == 3) {
+            server = new StreamingServer(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Long.parseLong(args[2]));
+        } else if (args.length == 2) {
+            server = new StreamingServer(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
         } else if (args.length == 0) {
-            new StreamingServer().startServer();
+            server = new StreamingServer();
         } else {
-            System.out.println("Usage: java StreamingServer <streamer port> <chat port> OR java StreamingServer");
+            System.out.println("Usage: java StreamingServer <streamer port> <chat port> [stall threshold ms [fec columns fec rows]] OR java StreamingServer");
+            return;
+        }
+
+        String serverMbps = System.getProperty("egress.serverMbps");
+        if (serverMbps != null) {
+            long channelMbps = Long.parseLong(System.getProperty("egress.channelMbps", serverMbps));
+            server.setEgressBudget(new EgressBudget(Long.parseLong(serverMbps) * 1_000_000,
+                    Integer.getInteger("egress.maxQueued", 0), System.getProperty("egress.redirect")), channelMbps * 1_000_000);
         }
+        Integer thumbnailPort = Integer.getInteger("thumbnail.port");
+        if (thumbnailPort != null) {
+            server.enableThumbnails(thumbnailPort);
+        }
+        server.startServer();
     }
 
     /**
@@ -41,8 +94,21 @@ public class StreamingServer {
      * @param chatPort     Port for chat clients to connect.
      */
     public StreamingServer(int streamerPort, int chatPort) {
+        this(streamerPort, chatPort, 500);
+    }
+
+    /**
+     * Constructs a StreamingServer with specified ports and the time the primary streamer
+     * may stall before the backup streamer takes over.
+     *
+     * @param streamerPort     Port for the video streamer to connect.
+     * @param chatPort         Port for chat clients to connect.
+     * @param stallThresholdMs Stall time in milliseconds before failing over to the backup streamer.
+     */
+    public StreamingServer(int streamerPort, int chatPort, long stallThresholdMs) {
         this.streamerPort = streamerPort;
         this.chatPort = chatPort;
+        this.stallThresholdMs = stallThresholdMs;
     }
 
     /**
@@ -53,6 +119,60 @@ public class StreamingServer {
         this(8080, 8082);
     }
 
+    /**
+     * Enables row and column XOR forward error correction for clients that ask for it when registering.
+     * Must be called before the server is started.
+     *
+     * @param columns The number of columns (L) in the FEC matrix.
+     * @param rows    The number of rows (D) in the FEC matrix.
+     */
+    public void enableFec(int columns, int rows) {
+        fecEncoder = new FecEncoder(columns, rows);
+    }
+
+    /**
+     * Limits how many receivers are admitted, based on an egress bandwidth budget.
+     * Must be called before the server is started. Without a budget every receiver is admitted.
+     *
+     * @param egressBudget     The budget for the whole server.
+     * @param channelBudgetBps The budget for the stream channel in bits per second.
+     */
+    public void setEgressBudget(EgressBudget egressBudget, long channelBudgetBps) {
+        this.egressBudget = egressBudget;
+        this.streamChannel = egressBudget.channel(STREAM_CHANNEL, channelBudgetBps, DEFAULT_BITRATE_BPS);
+    }
+
+    /**
+     * Gets the egress budget, which exposes current and projected utilization.
+     *
+     * @return The egress budget, or null if every receiver is admitted.
+     */
+    public EgressBudget getEgressBudget() {
+        return egressBudget;
+    }
+
+    /**
+     * Serves a JPEG thumbnail of each channel's latest keyframe at http://host:port/thumbnail/&lt;channel&gt;.jpg.
+     * Thumbnails are decoded lazily when requested, at most once per keyframe, and shared by all requests.
+     * Must be called before the server is started.
+     *
+     * @param httpPort Port for the thumbnail HTTP endpoint.
+     */
+    public void enableThumbnails(int httpPort) {
+        this.thumbnailPort = httpPort;
+        this.streamThumbnail = new ThumbnailCache(THUMBNAIL_WIDTH);
+        thumbnails.put(STREAM_CHANNEL, streamThumbnail);
+    }
+
+    /**
+     * Gets the FEC encoder, which exposes the parity overhead.
+     *
+     * @return The FEC encoder, or null if forward error correction is not enabled.
+     */
+    public FecEncoder getFecEncoder() {
+        return fecEncoder;
+    }
+
     /**
      * Starts the server to listen for streamer and chat client connections.
      */
@@ -61,6 +181,12 @@ public class StreamingServer {
              ServerSocket chatSocket = new ServerSocket(chatPort);
              DatagramSocket udpSocket = new DatagramSocket()) {
 
+            eventLog.start();
+            if (thumbnailPort >= 0) {
+                startThumbnailEndpoint();
+            }
+            fecSink = (datagram, length, portOffset) -> sendFecDatagram(datagram, length, portOffset, udpSocket);
+            ingest = new StreamIngest(packet -> sendPacket(packet, udpSocket), stallThresholdMs, eventLog);
             new Thread(() -> listenForConnections(chatSocket)).start();
 
             System.out.println("Server started. Waiting for connections on port : " + streamerPort);
@@ -68,21 +194,47 @@ public class StreamingServer {
                 Socket streamerSocket = serverSocket.accept();
                 System.out.println("Streamer connected: " + streamerSocket.getInetAddress());
 
+                // The first streamer is the primary, the second one is kept as a hot standby
+                StreamIngest.Source source = ingest.connect(streamerSocket.getRemoteSocketAddress().toString());
+                if (source == null) {
+                    System.out.println("Rejected streamer, primary and backup already connected: " + streamerSocket.getInetAddress());
+                    streamerSocket.close();
+                    continue;
+                }
+
                 // Handle the streamer in a new thread
-                new Thread(() -> handleStreamer(streamerSocket, udpSocket)).start();
+                new Thread(() -> handleStreamer(streamerSocket, source)).start();
             }
         } catch (IOException e) {
             System.err.println(e.getMessage());
+        } finally {
+            chatRooms.shutdown();
+            if (egressBudget != null) {
+                egressBudget.shutdown();
+            }
+            // Write out anything still queued, including pending send error summaries
+            eventLog.stop();
         }
     }
 
     /**
-     * Handles the connection to a streamer and relays video data to connected clients.
+     * Gets the ingest handling the primary and backup streamer connections,
+     * which also exposes failover statistics.
+     *
+     * @return The ingest, or null if the server has not been started.
+     */
+    public StreamIngest getIngest() {
+        return ingest;
+    }
+
+    /**
+     * Handles the connection to a streamer and passes its video data on to the ingest,
+     * which relays it to connected clients if the streamer is the primary.
      *
      * @param streamerSocket The socket used by the streamer to send data.
-     * @param udpSocket      The UDP socket used to broadcast data to clients.
+     * @param source         The ingest source registered for this streamer.
      */
-    private void handleStreamer(Socket streamerSocket, DatagramSocket udpSocket) {
+    private void handleStreamer(Socket streamerSocket, StreamIngest.Source source) {
         byte[] buffer = new byte[8192]; // larger buffer to read data
         byte[] packetBuffer = new byte[1316]; // fixed size buffer for packets to make sure they can be decoded properly
 
@@ -95,7 +247,7 @@ public class StreamingServer {
 
                     // send packet when the buffer is full
                     if (offset == packetBuffer.length) {
-                        sendPacket(packetBuffer, udpSocket);
+                        ingest.offer(source, packetBuffer);
                         offset = 0; // reset offset for the next packet
                     }
                 }
@@ -105,28 +257,116 @@ public class StreamingServer {
             if (offset > 0) {
                 byte[] lastPacket = new byte[offset];
                 System.arraycopy(packetBuffer, 0, lastPacket, 0, offset);
-                sendPacket(lastPacket, udpSocket);
+                ingest.offer(source, lastPacket);
             }
         } catch (IOException e) {
             System.err.println("Streamer disconnected: " + e.getMessage());
         } finally {
-            broadcastChatMessage("Server: The stream has stopped.");
+            // Only tell the clients if there is no backup streamer to take over
+            if (ingest.disconnect(source)) {
+                broadcastChatMessage("Server: The stream has stopped.");
+            }
+        }
+    }
+
+    /**
+     * Starts the HTTP endpoint serving channel thumbnails.
+     *
+     * @throws IOException If the HTTP server could not be started.
+     */
+    private void startThumbnailEndpoint() throws IOException {
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress(thumbnailPort), 0);
+        httpServer.createContext("/thumbnail/", this::handleThumbnailRequest);
+        httpServer.start();
+        System.out.println("Serving thumbnails on port " + thumbnailPort);
+    }
+
+    /**
+     * Answers a request for /thumbnail/&lt;channel&gt;.jpg with the channel's cached thumbnail.
+     *
+     * @param exchange The HTTP exchange.
+     * @throws IOException If an I/O error occurs while responding.
+     */
+    private void handleThumbnailRequest(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String channel = path.substring("/thumbnail/".length()).replaceFirst("\\.jpg$", "");
+        ThumbnailCache cache = thumbnails.get(channel);
+        byte[] jpeg = cache != null ? cache.getJpeg() : null;
+
+        try (exchange) {
+            if (jpeg == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "image/jpeg");
+            exchange.getResponseHeaders().set("Cache-Control", "max-age=1");
+            exchange.sendResponseHeaders(200, jpeg.length);
+            exchange.getResponseBody().write(jpeg);
         }
     }
 
     /**
-     * Sends a video packet to all connected clients via UDP.
+     * Sends a video packet to all connected clients via UDP. Clients using forward error
+     * correction get the packet wrapped in RTP, followed by any parity it completes.
      *
      * @param packet    The packet to send.
      * @param udpSocket The UDP socket used for sending the packet.
      */
     private void sendPacket(byte[] packet, DatagramSocket udpSocket) {
+        if (streamChannel != null) {
+            streamChannel.record(packet.length);
+        }
+        if (streamThumbnail != null) {
+            streamThumbnail.onPacket(packet);
+        }
+        if (fecEncoder != null && !fecClients.isEmpty()) {
+            fecEncoder.encode(packet, packet.length, fecSink);
+        }
         for (InetSocketAddress clientAddress : clients.keySet()) {
+            if (fecClients.contains(clientAddress)) {
+                continue;
+            }
             try {
                 DatagramPacket datagramPacket = new DatagramPacket(packet, packet.length, clientAddress.getAddress(), clientAddress.getPort());
                 udpSocket.send(datagramPacket);
             } catch (IOException e) {
-                System.err.println("Error sending packet: " + e.getMessage());
+                recordSendError(clientAddress, e);
+            }
+        }
+    }
+
+    /**
+     * Records a failed send to a client. The error is counted and summarized by the event log
+     * once per second, so an unreachable client cannot flood the console or slow down fan-out.
+     *
+     * @param clientAddress The client the packet was sent to.
+     * @param e             The error from sending.
+     */
+    private void recordSendError(InetSocketAddress clientAddress, IOException e) {
+        EventLog.RateLimitedEvent event = sendErrors.get(clientAddress);
+        if (event != null) {
+            event.record(e.getMessage());
+        }
+    }
+
+    /**
+     * Sends a datagram produced by the FEC encoder to all clients using forward error correction.
+     * Only called from the ingest, so the datagram packet is reused between sends.
+     *
+     * @param datagram   The datagram to send.
+     * @param length     The datagram length.
+     * @param portOffset The offset from each client's media port.
+     * @param udpSocket  The UDP socket used for sending the datagram.
+     */
+    private void sendFecDatagram(byte[] datagram, int length, int portOffset, DatagramSocket udpSocket) {
+        fecPacket.setData(datagram, 0, length);
+        for (InetSocketAddress clientAddress : fecClients) {
+            try {
+                fecPacket.setAddress(clientAddress.getAddress());
+                fecPacket.setPort(clientAddress.getPort() + portOffset);
+                udpSocket.send(fecPacket);
+            } catch (IOException e) {
+                recordSendError(clientAddress, e);
             }
         }
     }
@@ -155,6 +395,7 @@ public class StreamingServer {
      */
     private void handleClient(Socket clientSocket) {
         InetSocketAddress clientAddress = null;
+        double admittedCost = 0;
         try (BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
              PrintWriter writer = new PrintWriter(clientSocket.getOutputStream(), true)) {
             System.out.println("Client connected: " + clientSocket.getInetAddress());
@@ -167,22 +408,45 @@ public class StreamingServer {
                 String[] parts = registrationMessage.split(":");
                 String displayName = parts[1];
                 int streamPort = Integer.parseInt(parts[2]);
+                boolean wantsFec = fecEncoder != null && parts.length > 3 && parts[3].equals("FEC");
+
+                // Admission control, a receiver using FEC also costs the parity overhead
+                if (egressBudget != null) {
+                    double cost = wantsFec ? 1 + fecEncoder.getOverhead() : 1;
+                    if (!admit(clientSocket, reader, writer, cost)) {
+                        return;
+                    }
+                    admittedCost = cost;
+                }
                 System.out.println("Registered client: " + displayName);
                 // Here a new Address is made with the port specified by the Receiver which will then be used to send data too.
                 clientAddress = new InetSocketAddress(clientSocket.getInetAddress(), streamPort);
+                sendErrors.put(clientAddress, eventLog.register(EventLog.Level.WARN, "send errors to " + clientAddress));
                 clients.put(clientAddress, writer);
+                // Optional fourth part asks for forward error correction
+                if (wantsFec) {
+                    fecClients.add(clientAddress);
+                }
 
                 // Let Receiver know its connected
                 writer.println("Registration successful");
+                chatRooms.connect(writer, clientSocket);
+                chatRooms.join(DEFAULT_ROOM, writer);
 
 
-                handleChatMessages(reader, displayName);
+                handleChatMessages(reader, writer, displayName);
             }
         } catch (IOException e) {
             System.err.println("Error handling chat client: " + e.getMessage());
         } finally {
+            if (admittedCost > 0) {
+                egressBudget.release(streamChannel, admittedCost);
+            }
             if (clientAddress != null) {
                 try {
+                    chatRooms.leave(clients.get(clientAddress));
+                    fecClients.remove(clientAddress);
+                    eventLog.unregister(sendErrors.remove(clientAddress));
                     AutoCloseable closeable = clients.remove(clientAddress);
                     closeable.close();
                 } catch (Exception e) {
@@ -194,17 +458,114 @@ public class StreamingServer {
     }
 
     /**
-     * Handles chat messages from a client and broadcasts them to all connected clients.
+     * Asks the egress budget to admit a receiver and tells the receiver the outcome if it is not
+     * admitted right away. A queued receiver waits until capacity frees up.
+     *
+     * @param socket The receiver's chat connection.
+     * @param reader BufferedReader for the receiver's chat connection.
+     * @param writer PrintWriter for the receiver's chat connection.
+     * @param cost   The receiver's cost in streams.
+     * @return True if the receiver was admitted.
+     */
+    private boolean admit(Socket socket, BufferedReader reader, PrintWriter writer, double cost) {
+        EgressBudget.Ticket ticket = egressBudget.request(streamChannel, cost);
+        switch (ticket.getDecision()) {
+            case ADMIT:
+                return true;
+            case QUEUE:
+                writer.println("Server: The server is at capacity, you are queued and will be connected when there is room.");
+                if (egressBudget.awaitAdmission(ticket, ADMISSION_QUEUE_TIMEOUT_MS, () -> isConnected(socket, reader))) {
+                    return true;
+                }
+                writer.println("Registration rejected: the server is at capacity.");
+                return false;
+            case REDIRECT:
+                writer.println("REDIRECT:" + egressBudget.getRedirectTarget());
+                writer.println("Server: The server is at capacity, please connect to " + egressBudget.getRedirectTarget());
+                return false;
+            default:
+                writer.println("Registration rejected: the server is at capacity.");
+                return false;
+        }
+    }
+
+    /**
+     * Checks whether a client that is not being read from is still connected, by peeking at its
+     * input without consuming it.
+     *
+     * @param socket The client's connection.
+     * @param reader BufferedReader for the client's connection.
+     * @return False if the client has closed the connection.
+     */
+    private static boolean isConnected(Socket socket, BufferedReader reader) {
+        try {
+            socket.setSoTimeout(1);
+            reader.mark(1);
+            if (reader.read() < 0) {
+                return false;
+            }
+            reader.reset();
+            return true;
+        } catch (SocketTimeoutException e) {
+            // Nothing to read, but the connection is open
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                socket.setSoTimeout(0);
+            } catch (SocketException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Handles chat messages from a client and broadcasts them to the clients in the same room.
+     * A line "/join &lt;room&gt;" moves the client to another room and "/load" shows the current
+     * and projected egress utilization. Each client may send
+     * CHAT_MESSAGES_PER_SECOND messages per second with bursts of CHAT_BURST, anything above
+     * that is dropped so a single client cannot flood a room.
      *
      * @param reader      BufferedReader for reading messages from the client.
+     * @param writer      PrintWriter for the client's chat connection.
      * @param displayName The display name of the client.
      */
-    private void handleChatMessages(BufferedReader reader, String displayName) {
+    private void handleChatMessages(BufferedReader reader, PrintWriter writer, String displayName) {
+        double tokens = CHAT_BURST;
+        long lastRefill = System.nanoTime();
+        boolean warned = false;
         try {
             String message;
             while ((message = reader.readLine()) != null) {
+                if (message.equals("/load")) {
+                    writer.println("Server: " + (egressBudget != null ? egressBudget.describe() : "No egress budget configured."));
+                    continue;
+                }
+                if (message.startsWith("/join ")) {
+                    String room = message.substring("/join ".length()).trim();
+                    if (!room.isEmpty()) {
+                        chatRooms.join(room, writer);
+                        writer.println("Server: Joined room " + room);
+                    }
+                    continue;
+                }
+
+                // Token bucket rate limit per sender
+                long now = System.nanoTime();
+                tokens = Math.min(CHAT_BURST, tokens + (now - lastRefill) / 1e9 * CHAT_MESSAGES_PER_SECOND);
+                lastRefill = now;
+                if (tokens < 1) {
+                    if (!warned) {
+                        writer.println("Server: You are sending messages too fast, some were dropped.");
+                        warned = true;
+                    }
+                    continue;
+                }
+                tokens--;
+                warned = false;
+
                 String formattedMessage = displayName + ": " + message;
-                broadcastChatMessage(formattedMessage);
+                chatRooms.broadcast(chatRooms.getRoom(writer), formattedMessage);
             }
         } catch (IOException e) {
             System.err.println("Chat client disconnected: " + e.getMessage());
@@ -212,13 +573,11 @@ public class StreamingServer {
     }
 
     /**
-     * Broadcasts a chat message to all connected chat clients.
+     * Broadcasts a chat message to all connected chat clients in all rooms.
      *
      * @param message The message to broadcast.
      */
     private void broadcastChatMessage(String message) {
-        for (PrintWriter client : clients.values()) {
-            client.println(message);
-        }
+        chatRooms.broadcastAll(message);
     }
 }
@@ -0,0 +1,257 @@
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.Java2DFrameConverter;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent keyframe of a channel and turns it into a small JPEG preview on demand.
+ * <p>
+ * While forwarding, only the TS packets of the latest keyframe are copied aside, together with the
+ * PAT and PMT needed to demux them. Nothing is decoded until a thumbnail is requested, and the
+ * JPEG is cached until the next keyframe, so a channel is decoded at most once per GOP no matter
+ * how many viewers ask for its thumbnail.
+ * <p>
+ * The keyframe is captured into one buffer while the previous one is published, and the two are
+ * swapped when a keyframe completes, so capturing does not copy or allocate per GOP. A new buffer
+ * is only allocated when a thumbnail is being decoded from the published one at that moment.
+ *
+ * @author Jimmie Nilsson jini6619
+ */
+public class ThumbnailCache {
+    // PMT stream types of the video codecs the thumbnails can be decoded from
+    private static final int STREAM_TYPE_MPEG1_VIDEO = 0x01;
+    private static final int STREAM_TYPE_MPEG2_VIDEO = 0x02;
+    private static final int STREAM_TYPE_MPEG4_VIDEO = 0x10;
+    private static final int STREAM_TYPE_H264 = 0x1B;
+    private static final int STREAM_TYPE_HEVC = 0x24;
+    // Keyframes larger than this are not captured, so a broken stream cannot grow the buffers forever
+    private static final int MAX_CAPTURE_SIZE = 4 * 1024 * 1024;
+
+    private final int thumbnailWidth;
+
+    // Written only by the forwarding thread
+    private final byte[] pat = new byte[TsPacket.SIZE];
+    private final byte[] pmt = new byte[TsPacket.SIZE];
+    private boolean hasPat;
+    private int pmtPid = -1;
+    private int videoPid = -1;
+    private byte[] capture = new byte[64 * 1024];
+    private int captureLength;
+    private boolean capturing;
+
+    // The latest complete keyframe, published to the requesting threads and guarded by bufferLock
+    private final Object bufferLock = new Object();
+    private byte[] keyframe;
+    private int keyframeLength;
+    private long keyframeGeneration;
+    private byte[] decodingBuffer;
+
+    private byte[] jpeg;
+    private long jpegGeneration = -1;
+
+    /**
+     * Constructs a ThumbnailCache.
+     *
+     * @param thumbnailWidth The width of the thumbnails, the height follows the video's aspect ratio.
+     */
+    public ThumbnailCache(int thumbnailWidth) {
+        this.thumbnailWidth = thumbnailWidth;
+    }
+
+    /**
+     * Inspects a packet forwarded on the channel. Must be called from a single thread.
+     *
+     * @param packet The packet, made up of whole MPEG-TS packets.
+     */
+    public void onPacket(byte[] packet) {
+        for (int i = 0; i + TsPacket.SIZE <= packet.length; i += TsPacket.SIZE) {
+            if (!TsPacket.isSynced(packet, i)) {
+                continue;
+            }
+            int pid = TsPacket.pid(packet, i);
+            boolean payloadStart = TsPacket.isPayloadStart(packet, i);
+
+            if (pid == TsPacket.PAT_PID && payloadStart) {
+                System.arraycopy(packet, i, pat, 0, TsPacket.SIZE);
+                hasPat = true;
+                pmtPid = readPmtPid(packet, i);
+            } else if (pid == pmtPid && payloadStart) {
+                System.arraycopy(packet, i, pmt, 0, TsPacket.SIZE);
+                int pmtVideoPid = readVideoPid(packet, i);
+                if (pmtVideoPid != videoPid) {
+                    // The program changed, drop a keyframe captured from the old video stream
+                    capturing = false;
+                    videoPid = pmtVideoPid;
+                }
+            } else if (pid == videoPid && payloadStart) {
+                if (capturing) {
+                    // The next frame starts, so the keyframe is complete
+                    capturing = false;
+                    publishCapture();
+                }
+                if (TsPacket.isRandomAccessPoint(packet, i) && hasPat) {
+                    startCapture();
+                }
+            }
+
+            if (capturing && pid == videoPid) {
+                append(packet, i);
+            }
+        }
+    }
+
+    /**
+     * Gets a JPEG thumbnail of the latest keyframe, decoding it if it has changed since the last call.
+     *
+     * @return The JPEG bytes, or null if no keyframe has been seen or it could not be decoded.
+     */
+    public synchronized byte[] getJpeg() {
+        byte[] data;
+        int length;
+        long generation;
+        synchronized (bufferLock) {
+            if (keyframe == null || keyframeGeneration == jpegGeneration) {
+                return jpeg;
+            }
+            data = keyframe;
+            length = keyframeLength;
+            generation = keyframeGeneration;
+            // Keep the forwarding thread from capturing into the buffer while it is decoded
+            decodingBuffer = data;
+        }
+        try {
+            jpeg = decode(data, length);
+        } catch (Exception e) {
+            System.err.println("Error creating thumbnail: " + e.getMessage());
+        } finally {
+            synchronized (bufferLock) {
+                decodingBuffer = null;
+            }
+        }
+        jpegGeneration = generation;
+        return jpeg;
+    }
+
+    /**
+     * Decodes the first video frame of a TS buffer and encodes it as a scaled JPEG.
+     *
+     * @param data   The buffer holding the TS packets to decode.
+     * @param length The number of bytes of TS packets in the buffer.
+     * @return The JPEG bytes, or null if no frame could be decoded.
+     * @throws Exception If an error occurs while decoding or encoding.
+     */
+    private byte[] decode(byte[] data, int length) throws Exception {
+        Java2DFrameConverter converter = new Java2DFrameConverter();
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(new ByteArrayInputStream(data, 0, length), 0)) {
+            grabber.setFormat("mpegts");
+            grabber.start();
+            Frame frame = grabber.grabImage();
+            if (frame == null || frame.image == null) {
+                return null;
+            }
+            BufferedImage image = converter.convert(frame);
+            int height = Math.max(1, image.getHeight() * thumbnailWidth / image.getWidth());
+
+            BufferedImage thumbnail = new BufferedImage(thumbnailWidth, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g2d = thumbnail.createGraphics();
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g2d.drawImage(image, 0, 0, thumbnailWidth, height, null);
+            g2d.dispose();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(thumbnail, "jpg", out);
+            return out.toByteArray();
+        }
+    }
+
+    private void startCapture() {
+        capturing = true;
+        captureLength = 0;
+        append(pat, 0);
+        append(pmt, 0);
+    }
+
+    /**
+     * Publishes the captured keyframe and takes the previously published buffer to capture the
+     * next one, unless a thumbnail is being decoded from it.
+     */
+    private void publishCapture() {
+        synchronized (bufferLock) {
+            byte[] previous = keyframe;
+            keyframe = capture;
+            keyframeLength = captureLength;
+            keyframeGeneration++;
+            capture = previous != null && previous != decodingBuffer ? previous : new byte[capture.length];
+        }
+    }
+
+    private void append(byte[] packet, int offset) {
+        if (captureLength + TsPacket.SIZE > capture.length) {
+            if (capture.length >= MAX_CAPTURE_SIZE) {
+                // Too large for a thumbnail, skip this keyframe
+                capturing = false;
+                return;
+            }
+            capture = Arrays.copyOf(capture, Math.min(capture.length * 2, MAX_CAPTURE_SIZE));
+        }
+        System.arraycopy(packet, offset, capture, captureLength, TsPacket.SIZE);
+        captureLength += TsPacket.SIZE;
+    }
+
+    /**
+     * Reads the PID of the first program's PMT from a PAT packet.
+     *
+     * @return The PMT PID, or -1 if the PAT does not list a program.
+     */
+    private static int readPmtPid(byte[] packet, int offset) {
+        int section = TsPacket.sectionStart(packet, offset);
+        if (section < 0) {
+            return -1;
+        }
+        int end = TsPacket.sectionEnd(packet, offset, section);
+        for (int p = section + 8; p + 4 <= end; p += 4) {
+            int programNumber = ((packet[p] & 0xFF) << 8) | (packet[p + 1] & 0xFF);
+            if (programNumber != 0) {
+                return ((packet[p + 2] & 0x1F) << 8) | (packet[p + 3] & 0xFF);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the PID of the first video elementary stream from a PMT packet.
+     *
+     * @return The video PID, or -1 if the PMT lists no supported video stream.
+     */
+    private static int readVideoPid(byte[] packet, int offset) {
+        int section = TsPacket.sectionStart(packet, offset);
+        if (section < 0 || section + 12 > offset + TsPacket.SIZE) {
+            return -1;
+        }
+        int end = TsPacket.sectionEnd(packet, offset, section);
+        int programInfoLength = ((packet[section + 10] & 0x0F) << 8) | (packet[section + 11] & 0xFF);
+        int stream = section + 12 + programInfoLength;
+        while (stream + 5 <= end) {
+            int streamType = packet[stream] & 0xFF;
+            int elementaryPid = ((packet[stream + 1] & 0x1F) << 8) | (packet[stream + 2] & 0xFF);
+            if (isVideoStreamType(streamType)) {
+                return elementaryPid;
+            }
+            int esInfoLength = ((packet[stream + 3] & 0x0F) << 8) | (packet[stream + 4] & 0xFF);
+            stream += 5 + esInfoLength;
+        }
+        return -1;
+    }
+
+    private static boolean isVideoStreamType(int streamType) {
+        return streamType == STREAM_TYPE_MPEG1_VIDEO || streamType == STREAM_TYPE_MPEG2_VIDEO
+                || streamType == STREAM_TYPE_MPEG4_VIDEO || streamType == STREAM_TYPE_H264
+                || streamType == STREAM_TYPE_HEVC;
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Constants and header helpers for MPEG-TS packets, shared by the classes that inspect the
+ * forwarded stream. All methods take a buffer and the offset of a 188 byte TS packet in it.
+ *
+ * @author Jimmie Nilsson jini6619
+ */
+public final class TsPacket {
+    public static final int SIZE = 188;
+    public static final int SYNC_BYTE = 0x47;
+    public static final int PID_COUNT = 8192;
+    public static final int PAT_PID = 0;
+
+    private TsPacket() {
+    }
+
+    /**
+     * Checks whether a TS packet starts with the sync byte.
+     */
+    static boolean isSynced(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) == SYNC_BYTE;
+    }
+
+    static int pid(byte[] buffer, int offset) {
+        return ((buffer[offset + 1] & 0x1F) << 8) | (buffer[offset + 2] & 0xFF);
+    }
+
+    static boolean isPayloadStart(byte[] buffer, int offset) {
+        return (buffer[offset + 1] & 0x40) != 0;
+    }
+
+    static boolean hasPayload(byte[] buffer, int offset) {
+        return (buffer[offset + 3] & 0x10) != 0;
+    }
+
+    /**
+     * Checks whether a TS packet has an adaptation field with at least its flags byte.
+     */
+    static boolean hasAdaptationFlags(byte[] buffer, int offset) {
+        return (buffer[offset + 3] & 0x20) != 0 && (buffer[offset + 4] & 0xFF) > 0;
+    }
+
+    /**
+     * Checks whether a TS packet has the random access indicator set, which the muxer sets on
+     * packets starting a keyframe.
+     */
+    static boolean isRandomAccessPoint(byte[] buffer, int offset) {
+        return hasAdaptationFlags(buffer, offset) && (buffer[offset + 5] & 0x40) != 0;
+    }
+
+    /**
+     * Sets the discontinuity indicator of a TS packet, telling the demuxer that continuity
+     * counters and the PCR time base restart here.
+     *
+     * @return True if the flag was set, false if the packet has no adaptation field to carry it.
+     */
+    static boolean setDiscontinuity(byte[] buffer, int offset) {
+        if (!hasAdaptationFlags(buffer, offset)) {
+            return false;
+        }
+        buffer[offset + 5] |= (byte) 0x80;
+        return true;
+    }
+
+    /**
+     * Finds the start of the PSI section carried by a TS packet, such as a PAT or PMT, by skipping
+     * the adaptation field and the pointer field. Only valid for packets with the payload unit
+     * start indicator set.
+     *
+     * @return The offset of the section's table_id, or -1 if the section header is not in the packet.
+     */
+    static int sectionStart(byte[] buffer, int offset) {
+        int section = offset + 4;
+        if ((buffer[offset + 3] & 0x20) != 0) {
+            section += 1 + (buffer[offset + 4] & 0xFF); // skip the adaptation field
+        }
+        int packetEnd = offset + SIZE;
+        if (section >= packetEnd) {
+            return -1;
+        }
+        section += 1 + (buffer[section] & 0xFF); // skip the pointer field
+        return section + 3 <= packetEnd ? section : -1;
+    }
+
+    /**
+     * Finds the end of a PSI section's data, excluding its CRC and limited to the packet, since
+     * sections spanning several packets are not reassembled.
+     *
+     * @param section The offset of the section as returned by sectionStart.
+     * @return The offset just past the last data byte of the section within the packet.
+     */
+    static int sectionEnd(byte[] buffer, int offset, int section) {
+        int sectionLength = ((buffer[section + 1] & 0x0F) << 8) | (buffer[section + 2] & 0xFF);
+        return Math.min(section + 3 + sectionLength - 4, offset + SIZE);
+    }
+
+    /**
+     * Finds the first TS packet in a buffer that has the random access indicator set.
+     *
+     * @param buffer The buffer of TS packets.
+     * @return The offset of the packet, or -1 if the buffer contains no keyframe start.
+     */
+    static int findRandomAccessPoint(byte[] buffer) {
+        for (int i = 0; i + SIZE <= buffer.length; i += SIZE) {
+            if (isSynced(buffer, i) && isRandomAccessPoint(buffer, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -9,6 +9,8 @@ import java.net.Socket;
 /**
  * Handles video streaming using FFmpegFrameGrabber and FFmpegFrameRecorder.
  * This class captures video frames from a specified source and streams them to a server.
+ * It can also run headless from the command line, for example to benchmark encoding and
+ * ingest with a test pattern or a looped file on a machine without a desktop.
  *
  * @author Jimmie Nilsson jini6619
  */
@@ -16,7 +18,8 @@ public class VideoStreamer {
     private FFmpegFrameGrabber videoGrabber;
     private FFmpegFrameRecorder recorder;
     private volatile boolean isStreaming = false;
-    private final String videoSource;
+    private volatile long framesStreamed;
+    private final CaptureSource videoSource;
     private final String serverAddress;
     private final int serverPort;
     private Frame videoFrame;
@@ -24,16 +27,69 @@ public class VideoStreamer {
     /**
      * Constructs a VideoStreamer instance with specified video source and server details.
      *
-     * @param videoSource   The source of the video (e.g., "desktop" for screen capture or a camera).
+     * @param videoSource   The source of the video (e.g., "desktop" for screen capture or a camera),
+     *                      see {@link CaptureSource#parse(String)} for all supported sources.
      * @param serverAddress The server address to stream the video.
      * @param serverPort    The server port to send the video stream.
+     * @throws IllegalArgumentException If the video source is not recognized.
      */
     public VideoStreamer(String videoSource, String serverAddress, int serverPort) {
+        this(CaptureSource.parse(videoSource), serverAddress, serverPort);
+    }
+
+    /**
+     * Constructs a VideoStreamer instance with specified capture source and server details.
+     *
+     * @param videoSource   The source of the video.
+     * @param serverAddress The server address to stream the video.
+     * @param serverPort    The server port to send the video stream.
+     */
+    public VideoStreamer(CaptureSource videoSource, String serverAddress, int serverPort) {
         this.videoSource = videoSource;
         this.serverAddress = serverAddress;
         this.serverPort = serverPort;
     }
 
+    /**
+     * Streams a video source to a server without a GUI.
+     *
+     * @param args Command-line arguments:
+     *             args[0] - Video source, e.g. "testsrc:1280x720@30" or "file:clip.mp4".
+     *             args[1] - Server address.
+     *             args[2] - Server port.
+     *             args[3] - Seconds to stream before stopping (optional, streams until killed by default).
+     *             args[4] - "unpaced" to read files and test patterns as fast as possible (optional).
+     * @throws Exception If an error occurs during streaming setup or execution.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3 || args.length > 5) {
+            System.out.println("Usage: java VideoStreamer <source> <server address> <server port> [seconds] [unpaced]");
+            return;
+        }
+        CaptureSource source = CaptureSource.parse(args[0]).withRealtime(args.length < 5 || !args[4].equals("unpaced"));
+        VideoStreamer streamer = new VideoStreamer(source, args[1], Integer.parseInt(args[2]));
+
+        if (args.length > 3) {
+            long seconds = Long.parseLong(args[3]);
+            Thread timer = new Thread(() -> {
+                try {
+                    Thread.sleep(seconds * 1000);
+                } catch (InterruptedException ignored) {
+                }
+                // Only ask the loop to end, it releases the grabber and recorder once it is out of them
+                streamer.requestStop();
+            });
+            timer.setDaemon(true);
+            timer.start();
+        }
+
+        long start = System.nanoTime();
+        streamer.startStreaming();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Streamed %d frames from %s in %.1f s (%.1f fps)%n",
+                streamer.getFramesStreamed(), source, elapsed, streamer.getFramesStreamed() / elapsed);
+    }
+
     /**
      * Starts the video streaming process.
      * It initializes the video grabber, captures frames, and streams them to the specified server.
@@ -47,17 +103,15 @@ public class VideoStreamer {
              OutputStream socketStream = socket.getOutputStream()) {
 
             // Video grabber
-            videoGrabber = new FFmpegFrameGrabber(videoSource);
-            videoGrabber.setFormat("gdigrab"); // Screen capture format (Windows-specific)
-            videoGrabber.setImageHeight(1080);
-            videoGrabber.setImageWidth(1920);
+            videoGrabber = videoSource.createGrabber();
             videoGrabber.start();
+            double frameRate = videoGrabber.getFrameRate() > 0 ? videoGrabber.getFrameRate() : 30;
 
             // Recorder
             recorder = new FFmpegFrameRecorder(socketStream, videoGrabber.getImageWidth(), videoGrabber.getImageHeight());
             recorder.setFormat("mpegts");
             recorder.setVideoCodec(avcodec.AV_CODEC_ID_H264);
-            recorder.setFrameRate(30);
+            recorder.setFrameRate(frameRate);
             recorder.setVideoBitrate(2000000);
             recorder.setOption("movflags", "faststart");
             recorder.setVideoOption("preset", "ultrafast");
@@ -65,12 +119,42 @@ public class VideoStreamer {
             recorder.setOption("pkt_size", "1316");
             recorder.start();
 
+            long startNanos = System.nanoTime();
+            long loopOffset = 0; // microseconds of media played before the current loop
+            long lastTimestamp = 0;
+            boolean frameSinceRestart = false;
             while (isStreaming) {
-                Frame videoFrame = videoGrabber.grab();
-                if (videoFrame != null) {
-                    this.videoFrame = videoFrame;
-                    recorder.record(videoFrame);
+                Frame videoFrame = videoGrabber.grabImage();
+                if (videoFrame == null) {
+                    if (!videoSource.isLooping()) {
+                        // The device or generator has ended, stop instead of polling it forever
+                        System.err.println("Video source ended: " + videoSource);
+                        break;
+                    }
+                    if (!frameSinceRestart) {
+                        // A whole pass without a frame, e.g. an audio-only file, would restart forever
+                        System.err.println("No video frames in source: " + videoSource);
+                        break;
+                    }
+                    // Start the file over, continuing the timeline after the last frame
+                    loopOffset += lastTimestamp + (long) (1_000_000 / frameRate);
+                    lastTimestamp = 0;
+                    frameSinceRestart = false;
+                    videoGrabber.restart();
+                    continue;
+                }
+                frameSinceRestart = true;
+                if (videoSource.isRealtime()) {
+                    // Files and test patterns are read faster than real time, so wait for the frame's time
+                    long waitNanos = startNanos + (loopOffset + videoFrame.timestamp) * 1000 - System.nanoTime();
+                    if (waitNanos > 0) {
+                        Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+                    }
                 }
+                lastTimestamp = videoFrame.timestamp;
+                this.videoFrame = videoFrame;
+                recorder.record(videoFrame);
+                framesStreamed++;
             }
         } catch (Exception e) {
             System.err.println(e.getMessage());
@@ -78,6 +162,15 @@ public class VideoStreamer {
        stopStreaming();
     }
 
+    /**
+     * Asks the streaming loop to end after the current frame. Unlike stopStreaming, nothing is
+     * released here, so it is safe to call while another thread is inside startStreaming, which
+     * releases the grabber and recorder itself when it returns.
+     */
+    public void requestStop() {
+        isStreaming = false;
+    }
+
     /**
      * Stops the streaming process and releases the resources for the grabber and recorder.
      */
@@ -107,6 +200,15 @@ public class VideoStreamer {
         return videoFrame != null ? videoFrame : null;
     }
 
+    /**
+     * Gets the number of frames encoded and sent to the server.
+     *
+     * @return The number of frames streamed.
+     */
+    public long getFramesStreamed() {
+        return framesStreamed;
+    }
+
     /**
      * Checks whether the streaming process is currently active.
      *